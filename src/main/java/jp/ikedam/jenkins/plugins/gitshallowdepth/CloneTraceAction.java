@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.FilePath;
+import hudson.model.InvisibleAction;
+import hudson.model.TaskListener;
+
+/**
+ * Time spent in each phase of clone, fetch and checkout of a build.
+ * 
+ * Phases are measured at extension points of the git plugin,
+ * and in git itself with trace2 events (git 2.25 or later),
+ * as git-client doesn't expose the progress output of git.
+ */
+@ExportedBean
+public class CloneTraceAction extends InvisibleAction {
+    private final List<TracedPhase> phases = new ArrayList<TracedPhase>();
+    private Long negotiationRounds;
+    private boolean completed;
+    
+    private transient String currentPhase;
+    private transient long currentPhaseStart;
+    
+    /**
+     * Starts a new phase, ending the current one.
+     * 
+     * @param name
+     */
+    public synchronized void start(@Nonnull String name) {
+        end();
+        currentPhase = name;
+        currentPhaseStart = System.currentTimeMillis();
+    }
+    
+    /**
+     * Ends the current phase.
+     */
+    public synchronized void end() {
+        if (currentPhase == null) {
+            return;
+        }
+        phases.add(new TracedPhase(currentPhase, System.currentTimeMillis() - currentPhaseStart, null, null));
+        currentPhase = null;
+    }
+    
+    /**
+     * Marks that the checkout completed.
+     * git launched by build steps are no longer traced.
+     */
+    public synchronized void complete() {
+        end();
+        completed = true;
+    }
+    
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+    
+    @Exported
+    public synchronized List<TracedPhase> getPhases() {
+        return new ArrayList<TracedPhase>(phases);
+    }
+    
+    /**
+     * @return the number of round trips to negotiate commits in fetch.
+     *     <code>null</code> if not traced.
+     */
+    @Exported
+    @CheckForNull
+    public synchronized Long getNegotiationRounds() {
+        return negotiationRounds;
+    }
+    
+    /**
+     * @param workspace
+     * @return the directory to write trace2 events to
+     */
+    @Nonnull
+    public static FilePath getTraceDir(@Nonnull FilePath workspace) {
+        return GitCommandLauncher.getTmpDir(workspace).child("git-trace2");
+    }
+    
+    /**
+     * Reads trace2 events written by git, and removes them.
+     * 
+     * @param traceDir
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void readTrace(@Nonnull FilePath traceDir) throws IOException, InterruptedException {
+        if (!traceDir.isDirectory()) {
+            return;
+        }
+        Map<String, TracedPhase> regions = new LinkedHashMap<String, TracedPhase>();
+        long rounds = 0;
+        boolean hasRounds = false;
+        for (FilePath file: traceDir.list()) {
+            String progressLabel = null;
+            for (String line: file.readToString().split("\n")) {
+                JSONObject event;
+                try {
+                    event = JSONObject.fromObject(line);
+                } catch (JSONException e) {
+                    continue;
+                }
+                String type = event.optString("event");
+                String category = event.optString("category");
+                if ("region_enter".equals(type) && "progress".equals(category)) {
+                    progressLabel = event.optString("label");
+                } else if ("region_leave".equals(type)) {
+                    String name = String.format("%s/%s", category, event.optString("label"));
+                    long millis = (long) (event.optDouble("t_rel", 0) * 1000);
+                    add(regions, new TracedPhase(name, millis, null, null));
+                } else if ("data".equals(type) && "progress".equals(category) && progressLabel != null) {
+                    String name = String.format("progress/%s", progressLabel);
+                    if ("total_bytes".equals(event.optString("key"))) {
+                        add(regions, new TracedPhase(name, 0, event.optLong("value"), null));
+                    } else if ("total_objects".equals(event.optString("key"))) {
+                        add(regions, new TracedPhase(name, 0, null, event.optLong("value")));
+                    }
+                } else if ("data".equals(type) && "fetch-pack".equals(category) && "total_rounds".equals(event.optString("key"))) {
+                    rounds += event.optLong("value");
+                    hasRounds = true;
+                }
+            }
+        }
+        traceDir.deleteRecursive();
+        synchronized (this) {
+            phases.addAll(regions.values());
+            if (hasRounds) {
+                negotiationRounds = rounds;
+            }
+        }
+    }
+    
+    private static void add(Map<String, TracedPhase> regions, TracedPhase phase) {
+        TracedPhase current = regions.get(phase.getName());
+        regions.put(phase.getName(), (current != null) ? current.merge(phase) : phase);
+    }
+    
+    /**
+     * Prints phases to the build log.
+     * 
+     * @param listener
+     */
+    public synchronized void print(@Nonnull TaskListener listener) {
+        listener.getLogger().println("Clone phases:");
+        for (TracedPhase phase: phases) {
+            listener.getLogger().println(String.format("  %s", phase));
+        }
+        if (negotiationRounds != null) {
+            listener.getLogger().println(String.format("  negotiation round trips: %d", negotiationRounds));
+        }
+    }
+    
+    /**
+     * A phase in clone, fetch or checkout.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class TracedPhase {
+        private final String name;
+        private final long millis;
+        private final Long bytes;
+        private final Long objects;
+        
+        public TracedPhase(String name, long millis, Long bytes, Long objects) {
+            this.name = name;
+            this.millis = millis;
+            this.bytes = bytes;
+            this.objects = objects;
+        }
+        
+        @Exported
+        public String getName() {
+            return name;
+        }
+        
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+        
+        @Exported
+        @CheckForNull
+        public Long getBytes() {
+            return bytes;
+        }
+        
+        @Exported
+        @CheckForNull
+        public Long getObjects() {
+            return objects;
+        }
+        
+        private TracedPhase merge(TracedPhase other) {
+            return new TracedPhase(
+                    name,
+                    millis + other.millis,
+                    sum(bytes, other.bytes),
+                    sum(objects, other.objects)
+            );
+        }
+        
+        private static Long sum(Long a, Long b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            return a + b;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%s: %d ms", name, millis));
+            if (bytes != null) {
+                sb.append(String.format(", %d bytes", bytes));
+            }
+            if (objects != null) {
+                sb.append(String.format(", %d objects", objects));
+            }
+            return sb.toString();
+        }
+    }
+}
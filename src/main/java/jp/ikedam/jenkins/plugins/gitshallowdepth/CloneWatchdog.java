@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Executor;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.CauseOfInterruption;
+import jenkins.util.Timer;
+
+/**
+ * Watches the size of a repository while it is cloned or fetched,
+ * and aborts the build when it exceeds the limit.
+ * 
+ * git-client doesn't expose the output of git while it is running,
+ * so the size of the repository is polled instead of counting received bytes.
+ * Only packs are measured, as received objects are written into
+ * <code>objects/pack</code>, first as <code>tmp_pack_*</code> while they are received.
+ */
+class CloneWatchdog implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(CloneWatchdog.class.getName());
+    
+    /**
+     * Interval to check the size of repositories in milliseconds.
+     */
+    public static long CHECK_INTERVAL = Long.getLong(CloneWatchdog.class.getName() + ".checkInterval", 2000L);
+    
+    private static final Map<Run<?, ?>, CloneWatchdog> WATCHDOGS
+        = Collections.synchronizedMap(new WeakHashMap<Run<?, ?>, CloneWatchdog>());
+    
+    private final Run<?, ?> build;
+    private final Executor executor;
+    private final FilePath gitDir;
+    private final long maxBytes;
+    private final TaskListener listener;
+    private ScheduledFuture<?> future;
+    
+    private CloneWatchdog(Run<?, ?> build, Executor executor, FilePath gitDir, long maxBytes, TaskListener listener) {
+        this.build = build;
+        this.executor = executor;
+        this.gitDir = gitDir;
+        this.maxBytes = maxBytes;
+        this.listener = listener;
+    }
+    
+    /**
+     * Starts watching the repository for the build running on the current executor.
+     * 
+     * @param build
+     * @param gitDir
+     * @param maxBytes
+     * @param listener
+     */
+    public static void start(@Nonnull Run<?, ?> build, @Nonnull FilePath gitDir, long maxBytes, @Nonnull TaskListener listener) {
+        Executor executor = Executor.currentExecutor();
+        if (executor == null) {
+            return;
+        }
+        stop(build);
+        CloneWatchdog watchdog = new CloneWatchdog(build, executor, gitDir, maxBytes, listener);
+        synchronized (watchdog) {
+            watchdog.future = Timer.get().scheduleWithFixedDelay(
+                    watchdog,
+                    CHECK_INTERVAL,
+                    CHECK_INTERVAL,
+                    TimeUnit.MILLISECONDS
+            );
+        }
+        WATCHDOGS.put(build, watchdog);
+    }
+    
+    /**
+     * Stops watching the repository for the build.
+     * 
+     * @param build
+     */
+    public static void stop(@Nonnull Run<?, ?> build) {
+        CloneWatchdog watchdog = WATCHDOGS.remove(build);
+        if (watchdog != null) {
+            watchdog.cancel();
+        }
+    }
+    
+    /**
+     * Stops watching the repository for the build,
+     * and checks the size of the repository at last.
+     * 
+     * @param build
+     * @throws AbortException the repository exceeds the limit
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void finish(@Nonnull Run<?, ?> build) throws AbortException, IOException, InterruptedException {
+        CloneWatchdog watchdog = WATCHDOGS.remove(build);
+        if (watchdog == null) {
+            return;
+        }
+        watchdog.cancel();
+        long size = getPackSize(watchdog.gitDir);
+        if (size > watchdog.maxBytes) {
+            throw new AbortException(watchdog.getMessage(size));
+        }
+    }
+    
+    private String getMessage(long size) {
+        return String.format(
+                "Aborting clone: the repository grows to %d MiB, exceeding the limit of %d MiB.",
+                size / 1024 / 1024,
+                maxBytes / 1024 / 1024
+        );
+    }
+    
+    private synchronized void cancel() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        if (!build.isBuilding() || executor.getCurrentExecutable() != build) {
+            // the build is finished without stopping the watchdog.
+            stop(build);
+            return;
+        }
+        long size;
+        try {
+            size = getPackSize(gitDir);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to check the size of " + gitDir, e);
+            return;
+        } catch (InterruptedException e) {
+            return;
+        }
+        if (size <= maxBytes) {
+            return;
+        }
+        stop(build);
+        String message = getMessage(size);
+        listener.error(message);
+        executor.interrupt(Result.FAILURE, new RepositorySizeExceeded(message));
+    }
+    
+    /**
+     * @param gitDir
+     * @return total size of packs in the repository, including ones being received
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static long getPackSize(@Nonnull FilePath gitDir) throws IOException, InterruptedException {
+        return gitDir.child("objects").child("pack").act(new PackSizeCallable());
+    }
+    
+    private static class PackSizeCallable implements FilePath.FileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            File[] files = f.listFiles();
+            if (files == null) {
+                return 0L;
+            }
+            long size = 0;
+            for (File file: files) {
+                size += file.length();
+            }
+            return size;
+        }
+    }
+    
+    /**
+     * The build is aborted for the size of the repository.
+     */
+    public static class RepositorySizeExceeded extends CauseOfInterruption {
+        private static final long serialVersionUID = 1L;
+        
+        private final String message;
+        
+        public RepositorySizeExceeded(String message) {
+            this.message = message;
+        }
+        
+        @Override
+        public String getShortDescription() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Stores snapshots in <code>JENKINS_HOME</code>,
+ * and streams them over the channel of the node.
+ */
+public class ControllerSnapshotCacheBackend extends SnapshotCacheBackend {
+    private static final String CACHE_DIR = "caches/git-shallow-depth/remote-snapshots";
+    
+    private Integer budget;
+    
+    @DataBoundConstructor
+    public ControllerSnapshotCacheBackend() {
+    }
+    
+    @DataBoundSetter
+    public void setBudget(Integer budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * @return disk budget for snapshots in MiB. <code>null</code> for 10 GiB.
+     * @see SnapshotCacheBackend#DEFAULT_BUDGET
+     */
+    @CheckForNull
+    public Integer getBudget() {
+        return budget;
+    }
+    
+    @CheckForNull
+    private static File getCacheDir() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return (jenkins != null) ? new File(jenkins.getRootDir(), CACHE_DIR) : null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean restore(@Nonnull String key, @Nonnull FilePath gitDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        File dir = getCacheDir();
+        if (dir == null) {
+            return false;
+        }
+        File archive = new File(dir, key + ARCHIVE_SUFFIX);
+        if (!archive.isFile()) {
+            return false;
+        }
+        boolean restored = false;
+        InputStream in = new FileInputStream(archive);
+        try {
+            gitDir.untarFrom(in, FilePath.TarCompression.GZIP);
+            completeRestored(gitDir);
+            restored = true;
+        } finally {
+            IOUtils.closeQuietly(in);
+            if (!restored) {
+                // a partially extracted .git would be taken as a repository.
+                gitDir.deleteRecursive();
+            }
+        }
+        // for least recently used eviction.
+        archive.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save(@Nonnull String key, @Nonnull FilePath gitDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        File dir = getCacheDir();
+        if (dir == null) {
+            return;
+        }
+        File archive = new File(dir, key + ARCHIVE_SUFFIX);
+        if (archive.exists()) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Failed to create %s", dir));
+        }
+        File tmp = File.createTempFile(archive.getName(), ".tmp", dir);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp));
+            try {
+                gitDir.tar(out, getSnapshotScanner());
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(archive) && !archive.exists()) {
+                throw new IOException(String.format("Failed to rename %s to %s", tmp, archive));
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+        evict(dir, toBudgetBytes(getBudget()));
+    }
+    
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SnapshotCacheBackend> {
+        @Override
+        public String getDisplayName() {
+            return Messages.ControllerSnapshotCacheBackend_DisplayName();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each phase and counters
+ * while {@link RootCulpritsRecipientProvider} computes culprits.
+ */
+class CulpritsStatistics {
+    public enum Phase {
+        PRECOMPUTED("waiting precomputed culprits"),
+        PREVIOUS_BUILDS("previous builds"),
+        CHANGESETS("changesets"),
+        DEPENDENCY_CHANGES("dependency changes"),
+        UPSTREAM_CHANGESETS("upstream changesets"),
+        ROOT_CHANGESETS("root build changesets"),
+        ADDRESSES("addresses");
+        
+        private final String displayName;
+        
+        private Phase(String displayName) {
+            this.displayName = displayName;
+        }
+        
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+    
+    private final long[] nanos = new long[Phase.values().length];
+    private int builds;
+    private int changeSets;
+    private int users;
+    
+    /**
+     * @param phase
+     * @param start the value of {@link System#nanoTime()} when the phase started
+     */
+    public synchronized void end(Phase phase, long start) {
+        nanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+    
+    /**
+     * Counts a build visited.
+     */
+    public synchronized void visitBuild() {
+        ++builds;
+    }
+    
+    /**
+     * Counts a changeset parsed.
+     */
+    public synchronized void parseChangeSet() {
+        ++changeSets;
+    }
+    
+    /**
+     * Counts a user resolved to addresses.
+     */
+    public synchronized void resolveUser() {
+        ++users;
+    }
+    
+    public synchronized long getMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()]);
+    }
+    
+    public synchronized long getTotalMillis() {
+        long total = 0;
+        for (long n: nanos) {
+            total += n;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+    
+    public synchronized int getBuilds() {
+        return builds;
+    }
+    
+    public synchronized int getChangeSets() {
+        return changeSets;
+    }
+    
+    public synchronized int getUsers() {
+        return users;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("total %d ms", getTotalMillis()));
+        for (Phase phase: Phase.values()) {
+            sb.append(String.format(", %s %d ms", phase.getDisplayName(), getMillis(phase)));
+        }
+        sb.append(String.format(", %d builds, %d changesets, %d users", builds, changeSets, users));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.model.Descriptor.FormException;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Ordered rules deciding shallow clone settings
+ * for {@link ShallowDepthCloneOption} without depth.
+ * 
+ * The first rule matching the job, the branch and the remote URL applies.
+ */
+@Extension
+public class DepthPolicyConfiguration extends GlobalConfiguration {
+    private static final Logger LOGGER = Logger.getLogger(DepthPolicyConfiguration.class.getName());
+    
+    /**
+     * The maximum number of resolved rules to hold.
+     */
+    public static int CACHE_SIZE = Integer.getInteger(DepthPolicyConfiguration.class.getName() + ".cacheSize", 1000);
+    
+    private List<DepthPolicyRule> rules = Collections.emptyList();
+    
+    /**
+     * Resolved rules for job, branch and URL.
+     * {@link #NO_RULE} for ones no rule matches.
+     * The least recently used ones are dropped.
+     */
+    private transient Map<String, DepthPolicyRule> cache = createCache();
+    
+    private static final DepthPolicyRule NO_RULE = new DepthPolicyRule(false, null);
+    
+    private static Map<String, DepthPolicyRule> createCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, DepthPolicyRule>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DepthPolicyRule> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+    }
+    
+    public DepthPolicyConfiguration() {
+        load();
+    }
+    
+    /**
+     * @return the instance. <code>null</code> if Jenkins isn't running.
+     */
+    @CheckForNull
+    public static DepthPolicyConfiguration get() {
+        return GlobalConfiguration.all().get(DepthPolicyConfiguration.class);
+    }
+    
+    @Nonnull
+    public List<DepthPolicyRule> getRules() {
+        return rules;
+    }
+    
+    public void setRules(List<DepthPolicyRule> rules) {
+        this.rules = (rules != null)
+                ? Collections.unmodifiableList(new ArrayList<DepthPolicyRule>(rules))
+                : Collections.<DepthPolicyRule>emptyList();
+        cache.clear();
+    }
+    
+    /**
+     * @param jobFullName
+     * @param branch
+     * @param url the remote URL. Must not contain credentials as it is held in the cache.
+     * @return the first rule matching. <code>null</code> if none matches.
+     *     Rules with invalid patterns are skipped.
+     */
+    @CheckForNull
+    public DepthPolicyRule resolve(String jobFullName, String branch, String url) {
+        String key = String.format("%s\n%s\n%s", jobFullName, branch, url);
+        DepthPolicyRule rule = cache.get(key);
+        if (rule == null) {
+            rule = NO_RULE;
+            for (DepthPolicyRule r: getRules()) {
+                try {
+                    if (r.matches(jobFullName, branch, url)) {
+                        rule = r;
+                        break;
+                    }
+                } catch (PatternSyntaxException e) {
+                    LOGGER.log(Level.WARNING, "Skipped a depth policy rule with an invalid pattern", e);
+                }
+            }
+            cache.put(key, rule);
+        }
+        return (rule != NO_RULE) ? rule : null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        // clear rules not to be left when all rules are removed.
+        setRules(null);
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+    
+    protected Object readResolve() {
+        cache = createCache();
+        if (rules == null) {
+            rules = Collections.emptyList();
+        }
+        return this;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.CheckForNull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * A rule in {@link DepthPolicyConfiguration}
+ * to decide shallow clone settings for jobs.
+ */
+public class DepthPolicyRule extends AbstractDescribableImpl<DepthPolicyRule> {
+    private final boolean shallow;
+    private final Integer depth;
+    private String jobPattern;
+    private String branchPattern;
+    private String urlPattern;
+    
+    private transient Pattern jobRegex;
+    private transient Pattern branchRegex;
+    private transient Pattern urlRegex;
+    
+    @DataBoundConstructor
+    public DepthPolicyRule(boolean shallow, Integer depth) {
+        this.shallow = shallow;
+        this.depth = depth;
+    }
+    
+    /**
+     * @return whether to perform shallow clone. <code>false</code> to clone whole history.
+     */
+    public boolean isShallow() {
+        return shallow;
+    }
+    
+    public Integer getDepth() {
+        return depth;
+    }
+    
+    @DataBoundSetter
+    public void setJobPattern(String jobPattern) {
+        this.jobPattern = Util.fixEmptyAndTrim(jobPattern);
+        this.jobRegex = null;
+    }
+    
+    /**
+     * @return regular expression for full names of jobs. <code>null</code> to match any jobs.
+     */
+    @CheckForNull
+    public String getJobPattern() {
+        return jobPattern;
+    }
+    
+    @DataBoundSetter
+    public void setBranchPattern(String branchPattern) {
+        this.branchPattern = Util.fixEmptyAndTrim(branchPattern);
+        this.branchRegex = null;
+    }
+    
+    /**
+     * @return regular expression for branches. <code>null</code> to match any branches.
+     */
+    @CheckForNull
+    public String getBranchPattern() {
+        return branchPattern;
+    }
+    
+    @DataBoundSetter
+    public void setUrlPattern(String urlPattern) {
+        this.urlPattern = Util.fixEmptyAndTrim(urlPattern);
+        this.urlRegex = null;
+    }
+    
+    /**
+     * @return regular expression for remote URLs. <code>null</code> to match any URLs.
+     */
+    @CheckForNull
+    public String getUrlPattern() {
+        return urlPattern;
+    }
+    
+    /**
+     * @param jobFullName
+     * @param branch
+     * @param url
+     * @return whether this rule applies
+     */
+    public boolean matches(String jobFullName, String branch, String url) {
+        if (jobPattern != null && jobRegex == null) {
+            jobRegex = Pattern.compile(jobPattern);
+        }
+        if (branchPattern != null && branchRegex == null) {
+            branchRegex = Pattern.compile(branchPattern);
+        }
+        if (urlPattern != null && urlRegex == null) {
+            urlRegex = Pattern.compile(urlPattern);
+        }
+        return matches(jobRegex, jobFullName)
+                && matches(branchRegex, branch)
+                && matches(urlRegex, url);
+    }
+    
+    private static boolean matches(@CheckForNull Pattern regex, @CheckForNull String value) {
+        if (regex == null) {
+            return true;
+        }
+        if (value == null) {
+            return false;
+        }
+        return regex.matcher(value).matches();
+    }
+    
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DepthPolicyRule> {
+        @Override
+        public String getDisplayName() {
+            return Messages.DepthPolicyRule_DisplayName();
+        }
+        
+        public FormValidation doCheckJobPattern(@QueryParameter String value) {
+            return checkPattern(value);
+        }
+        
+        public FormValidation doCheckBranchPattern(@QueryParameter String value) {
+            return checkPattern(value);
+        }
+        
+        public FormValidation doCheckUrlPattern(@QueryParameter String value) {
+            return checkPattern(value);
+        }
+        
+        private FormValidation checkPattern(String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                Pattern.compile(value.trim());
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e, Messages.DepthPolicyRule_InvalidPattern());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * Launches git commands not supported by {@link GitClient}.
+ */
+class GitCommandLauncher {
+    private final Launcher launcher;
+    private final String gitExe;
+    private final FilePath workTree;
+    private final EnvVars env;
+    private final TaskListener listener;
+    private final boolean lowPriority;
+    private final StandardUsernameCredentials credentials;
+    
+    public GitCommandLauncher(@Nonnull Launcher launcher, @Nonnull String gitExe, @Nonnull FilePath workTree, @Nonnull EnvVars env, @Nonnull TaskListener listener) {
+        this(launcher, gitExe, workTree, env, listener, false, null);
+    }
+    
+    private GitCommandLauncher(Launcher launcher, String gitExe, FilePath workTree, EnvVars env, TaskListener listener, boolean lowPriority, StandardUsernameCredentials credentials) {
+        this.launcher = launcher;
+        this.gitExe = gitExe;
+        this.workTree = workTree;
+        this.env = env;
+        this.listener = listener;
+        this.lowPriority = lowPriority;
+        this.credentials = credentials;
+    }
+    
+    /**
+     * Creates a launcher for a workspace on a node outside builds.
+     * 
+     * @param scm
+     * @param node
+     * @param workTree
+     * @param listener
+     * @return the launcher for <code>workTree</code>
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Nonnull
+    public static GitCommandLauncher forNode(@Nonnull GitSCM scm, @Nonnull Node node, @Nonnull FilePath workTree, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        Computer c = node.toComputer();
+        return new GitCommandLauncher(
+                node.createLauncher(listener),
+                getGitExe(scm, node, listener),
+                workTree,
+                (c != null) ? c.getEnvironment() : new EnvVars(),
+                listener
+        );
+    }
+    
+    /**
+     * @return a launcher launching git with the lowest CPU priority on Unix nodes
+     */
+    @Nonnull
+    public GitCommandLauncher withLowPriority() {
+        return new GitCommandLauncher(launcher, gitExe, workTree, env, listener, true, credentials);
+    }
+    
+    /**
+     * @param credentials credentials to access remotes. <code>null</code> for none.
+     * @return a launcher launching git with <code>credentials</code>
+     * @see GitCredentialsEnvironment
+     */
+    @Nonnull
+    public GitCommandLauncher withCredentials(@CheckForNull StandardUsernameCredentials credentials) {
+        return new GitCommandLauncher(launcher, gitExe, workTree, env, listener, lowPriority, credentials);
+    }
+    
+    /**
+     * Creates a launcher for the working tree of the build running on the current executor.
+     * 
+     * @param scm
+     * @param build
+     * @param git
+     * @param listener
+     * @return the launcher for the working tree of <code>git</code>
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Nonnull
+    public static GitCommandLauncher forBuild(@Nonnull GitSCM scm, @Nonnull Run<?, ?> build, @Nonnull GitClient git, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        FilePath workTree = git.getWorkTree();
+        return new GitCommandLauncher(
+                workTree.createLauncher(listener),
+                getGitExe(scm, currentNode(), listener),
+                workTree,
+                build.getEnvironment(listener),
+                listener
+        );
+    }
+    
+    /**
+     * @return the node the current executor runs on
+     */
+    @CheckForNull
+    public static Node currentNode() {
+        Computer c = Computer.currentComputer();
+        return (c != null) ? c.getNode() : null;
+    }
+    
+    @Nonnull
+    public static String getGitExe(@Nonnull GitSCM scm, @CheckForNull Node node, @Nonnull TaskListener listener) {
+        String gitExe = (node != null) ? scm.getGitExe(node, listener) : null;
+        return (gitExe != null) ? gitExe : "git";
+    }
+    
+    @Nonnull
+    public FilePath getWorkTree() {
+        return workTree;
+    }
+    
+    @Nonnull
+    public TaskListener getListener() {
+        return listener;
+    }
+    
+    /**
+     * Launches git and waits for it.
+     * 
+     * @param out where to write the output of the command
+     * @param args arguments passed to git
+     * @return the exit code
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int launch(@Nonnull OutputStream out, @Nonnull String... args) throws IOException, InterruptedException {
+        ArgumentListBuilder cmd = new ArgumentListBuilder();
+        if (lowPriority && launcher.isUnix()) {
+            cmd.add("nice", "-n", "19");
+        }
+        cmd.add(gitExe);
+        cmd.add(args);
+        if (credentials == null) {
+            return launch(cmd, env, out);
+        }
+        FilePath tmp = getTmpDir(workTree);
+        tmp.mkdirs();
+        FilePath credentialsDir = tmp.createTempDir("credentials", "");
+        try {
+            EnvVars credentialsEnv = new EnvVars(env);
+            GitCredentialsEnvironment.setUp(credentials, credentialsDir, launcher.isUnix(), credentialsEnv);
+            return launch(cmd, credentialsEnv, out);
+        } finally {
+            credentialsDir.deleteRecursive();
+        }
+    }
+    
+    private int launch(ArgumentListBuilder cmd, EnvVars env, OutputStream out) throws IOException, InterruptedException {
+        return launcher.launch()
+                .cmds(cmd)
+                .envs(env)
+                .pwd(workTree)
+                .stdout(out)
+                .join();
+    }
+    
+    /**
+     * @param workTree
+     * @return the temporary directory next to <code>workTree</code>, which isn't removed by the build
+     */
+    @Nonnull
+    static FilePath getTmpDir(@Nonnull FilePath workTree) {
+        FilePath parent = workTree.getParent();
+        String tmpName = workTree.getName() + "@tmp";
+        return (parent != null) ? parent.child(tmpName) : workTree.child(tmpName);
+    }
+    
+    /**
+     * Launches git and fails if it exits with a non-zero code.
+     * The output is written to the build log.
+     * 
+     * @param args arguments passed to git
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws GitException the command exited with a non-zero code
+     */
+    public void run(@Nonnull String... args) throws IOException, InterruptedException, GitException {
+        int status = launch(listener.getLogger(), args);
+        if (status != 0) {
+            throw new GitException(String.format(
+                    "Command \"git %s\" returned status code %d",
+                    Util.join(Arrays.asList(args), " "),
+                    status
+            ));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Passes git configurations with environment variables
+ * (<code>GIT_CONFIG_COUNT</code>, <code>GIT_CONFIG_KEY_n</code>, <code>GIT_CONFIG_VALUE_n</code>).
+ * 
+ * Git honors them since 2.31.
+ * This is the only way to pass configurations to clones,
+ * as {@link org.jenkinsci.plugins.gitclient.GitClient} doesn't allow
+ * to pass <code>-c</code> to commands.
+ */
+class GitConfigEnvironment {
+    private static final String COUNT = "GIT_CONFIG_COUNT";
+    private static final String KEY = "GIT_CONFIG_KEY_%d";
+    private static final String VALUE = "GIT_CONFIG_VALUE_%d";
+    
+    private GitConfigEnvironment() {
+    }
+    
+    /**
+     * Adds a configuration, preserving ones already added.
+     * 
+     * @param env
+     * @param key
+     * @param value
+     */
+    public static void add(@Nonnull Map<String, String> env, @Nonnull String key, @Nonnull String value) {
+        int count = 0;
+        String current = env.get(COUNT);
+        if (current != null) {
+            try {
+                count = Integer.parseInt(current.trim());
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+        }
+        env.put(String.format(KEY, count), key);
+        env.put(String.format(VALUE, count), value);
+        env.put(COUNT, Integer.toString(count + 1));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.security.ACL;
+
+/**
+ * Passes credentials to git launched by {@link GitCommandLauncher}
+ * with <code>GIT_ASKPASS</code> and <code>GIT_SSH</code>,
+ * in the same way as the command line git of {@link GitClient}.
+ */
+class GitCredentialsEnvironment {
+    private GitCredentialsEnvironment() {
+    }
+    
+    /**
+     * @param scm
+     * @param build
+     * @return the credentials of the first remote of <code>scm</code>.
+     *     <code>null</code> if not configured.
+     */
+    @CheckForNull
+    public static StandardUsernameCredentials lookup(@Nonnull GitSCM scm, @Nonnull Run<?, ?> build) {
+        List<UserRemoteConfig> remotes = scm.getUserRemoteConfigs();
+        if (remotes.isEmpty()) {
+            return null;
+        }
+        UserRemoteConfig uc = remotes.get(0);
+        if (uc.getCredentialsId() == null || uc.getUrl() == null) {
+            return null;
+        }
+        return CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
+                        StandardUsernameCredentials.class,
+                        build.getParent(),
+                        ACL.SYSTEM,
+                        URIRequirementBuilder.fromUri(uc.getUrl()).build()
+                ),
+                CredentialsMatchers.allOf(
+                        CredentialsMatchers.withId(uc.getCredentialsId()),
+                        GitClient.CREDENTIALS_MATCHER
+                )
+        );
+    }
+    
+    /**
+     * Writes files to pass credentials in <code>dir</code>,
+     * and sets environment variables to use them.
+     * 
+     * <code>dir</code> should be removed after git exits.
+     * 
+     * @param credentials
+     * @param dir an empty directory on the node git runs on
+     * @param unix whether the node is Unix
+     * @param env
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void setUp(@Nonnull StandardUsernameCredentials credentials, @Nonnull FilePath dir, boolean unix, @Nonnull EnvVars env)
+            throws IOException, InterruptedException
+    {
+        if (credentials instanceof SSHUserPrivateKey) {
+            SSHUserPrivateKey key = (SSHUserPrivateKey) credentials;
+            FilePath keyFile = dir.child("key");
+            writeSecret(keyFile, key.getPrivateKey());
+            String ssh = String.format(
+                    "ssh -i \"%s\" -l \"%s\" -o StrictHostKeyChecking=no",
+                    keyFile.getRemote(),
+                    key.getUsername()
+            );
+            env.put("GIT_SSH", writeScript(dir, "ssh", unix, ssh + (unix ? " \"$@\"" : " %*")).getRemote());
+            if (key.getPassphrase() != null) {
+                FilePath passphraseFile = dir.child("passphrase");
+                writeSecret(passphraseFile, key.getPassphrase().getPlainText());
+                env.put("SSH_ASKPASS", writeScript(dir, "passphrase", unix, print(passphraseFile, unix)).getRemote());
+                // ssh uses SSH_ASKPASS only when DISPLAY is set.
+                env.put("DISPLAY", ":");
+            }
+        } else if (credentials instanceof StandardUsernamePasswordCredentials) {
+            StandardUsernamePasswordCredentials password = (StandardUsernamePasswordCredentials) credentials;
+            FilePath usernameFile = dir.child("username");
+            FilePath passwordFile = dir.child("password");
+            writeSecret(usernameFile, password.getUsername());
+            writeSecret(passwordFile, password.getPassword().getPlainText());
+            // git asks with "Username for 'https://...': " and "Password for 'https://...': ".
+            String askpass = unix
+                    ? String.format(
+                            "case \"$1\" in\n[Uu]sername*) %s ;;\n*) %s ;;\nesac",
+                            print(usernameFile, true),
+                            print(passwordFile, true)
+                    )
+                    : String.format(
+                            "@set arg=%%~1\r\n@if /i \"%%arg:~0,8%%\"==\"Username\" (%s) else (%s)",
+                            print(usernameFile, false),
+                            print(passwordFile, false)
+                    );
+            env.put("GIT_ASKPASS", writeScript(dir, "askpass", unix, askpass).getRemote());
+        }
+    }
+    
+    private static void writeSecret(FilePath file, String content) throws IOException, InterruptedException {
+        file.write(content, "UTF-8");
+        file.chmod(0400);
+    }
+    
+    private static String print(FilePath file, boolean unix) {
+        return String.format(unix ? "cat \"%s\"" : "@type \"%s\"", file.getRemote());
+    }
+    
+    private static FilePath writeScript(FilePath dir, String name, boolean unix, String body)
+            throws IOException, InterruptedException
+    {
+        FilePath script = dir.child(name + (unix ? ".sh" : ".bat"));
+        if (unix) {
+            script.write(String.format("#!/bin/sh\n%s\n", body), "UTF-8");
+            script.chmod(0500);
+        } else {
+            script.write(String.format("@echo off\r\n%s\r\n", body), "UTF-8");
+        }
+        return script;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Plugin;
+import hudson.Util;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Sends culprits of a matrix build only from the parent build
+ * when {@link RootCulpritsRecipientProvider#isAggregateMatrix()} is enabled.
+ */
+public class MatrixCulprits {
+    /**
+     * The variable listing failed configurations of a matrix build.
+     */
+    public static final String FAILED_CONFIGURATIONS = "FAILED_CONFIGURATIONS";
+    
+    private MatrixCulprits() {
+    }
+    
+    /**
+     * @return whether matrix-project plugin is available
+     */
+    public static boolean isAvailable() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return false;
+        }
+        Plugin p = jenkins.getPlugin("matrix-project");
+        return p != null && p.getWrapper().isActive();
+    }
+    
+    /**
+     * @param build
+     * @return the parent build if the build is a child of a matrix build
+     */
+    @CheckForNull
+    public static AbstractBuild<?, ?> getParentBuild(@Nonnull AbstractBuild<?, ?> build) {
+        if (!isAvailable() || !(build instanceof MatrixRun)) {
+            return null;
+        }
+        return ((MatrixRun) build).getParentBuild();
+    }
+    
+    /**
+     * @param build
+     * @return children of the matrix build worse than success
+     */
+    @Nonnull
+    public static List<AbstractBuild<?, ?>> getFailedRuns(@Nonnull AbstractBuild<?, ?> build) {
+        List<AbstractBuild<?, ?>> runs = new ArrayList<AbstractBuild<?, ?>>();
+        if (!isAvailable() || !(build instanceof MatrixBuild)) {
+            return runs;
+        }
+        for (MatrixRun run: ((MatrixBuild) build).getExactRuns()) {
+            Result r = run.getResult();
+            if (r != null && r.isWorseThan(Result.SUCCESS)) {
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+    
+    /**
+     * @param build
+     * @return combinations of failed children separated with spaces
+     */
+    @Nonnull
+    public static String getFailedConfigurations(@Nonnull AbstractBuild<?, ?> build) {
+        List<String> combinations = new ArrayList<String>();
+        for (AbstractBuild<?, ?> run: getFailedRuns(build)) {
+            combinations.add(((MatrixRun) run).getParent().getCombination().toString());
+        }
+        return Util.join(combinations, " ");
+    }
+    
+    /**
+     * Exposes failed configurations to the mail content of the parent build
+     * with <code>${ENV, var="FAILED_CONFIGURATIONS"}</code>.
+     * 
+     * This is called for every build, so classes of matrix-project and email-ext
+     * must not be touched before they are checked to be available.
+     */
+    @Extension(optional=true)
+    public static class EnvironmentContributorImpl extends EnvironmentContributor {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void buildEnvironmentFor(@SuppressWarnings("rawtypes") Run r, EnvVars envs, TaskListener listener)
+                throws IOException, InterruptedException
+        {
+            if (!isAvailable() || !EmailExtSupport.isAvailable() || !(r instanceof MatrixBuild)) {
+                return;
+            }
+            MatrixBuild build = (MatrixBuild) r;
+            MatrixProject project = build.getProject();
+            RootCulpritsRecipientProvider provider = RootCulpritsRecipientProvider.getProvider(project);
+            if (provider == null || !provider.isAggregateMatrix()) {
+                return;
+            }
+            envs.put(FAILED_CONFIGURATIONS, getFailedConfigurations(build));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import hudson.model.InvisibleAction;
+import hudson.model.User;
+
+/**
+ * Records culprits computed by {@link RootCulpritsRecipientProvider} for a build,
+ * so that following builds don't walk the history again.
+ */
+public class NotifiedCulpritsAction extends InvisibleAction {
+    private final List<String> userIds;
+    private final boolean notified;
+    
+    /**
+     * @param culprits
+     * @param notified <code>false</code> if the notification was coalesced into a later build
+     */
+    public NotifiedCulpritsAction(@Nonnull Set<User> culprits, boolean notified) {
+        this.userIds = new ArrayList<String>();
+        for (User user: culprits) {
+            this.userIds.add(user.getId());
+        }
+        this.notified = notified;
+    }
+    
+    @Nonnull
+    public Set<User> getCulprits() {
+        Set<User> r = new HashSet<User>();
+        for (String id: userIds) {
+            User user = User.get(id, false);
+            if (user != null) {
+                r.add(user);
+            }
+        }
+        return r;
+    }
+    
+    public boolean isNotified() {
+        return notified;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Holds culprits computed in background for {@link RootCulpritsRecipientProvider}
+ * while the build is running.
+ * 
+ * Held only in memory and released when the build completes,
+ * as a {@link Future} can't be saved with the build.
+ */
+class PrecomputedCulprits {
+    private static final Logger LOGGER = Logger.getLogger(PrecomputedCulprits.class.getName());
+    
+    /**
+     * Milliseconds to wait for the background computation.
+     */
+    public static long TIMEOUT = Long.getLong(PrecomputedCulprits.class.getName() + ".timeout", 30000L);
+    
+    private static final ConcurrentMap<Run<?, ?>, Future<Set<User>>> CULPRITS
+        = new ConcurrentHashMap<Run<?, ?>, Future<Set<User>>>();
+    
+    private PrecomputedCulprits() {
+    }
+    
+    /**
+     * @param build
+     * @return whether the computation is already started for the build
+     */
+    public static boolean isStarted(@Nonnull Run<?, ?> build) {
+        return CULPRITS.containsKey(build);
+    }
+    
+    /**
+     * @param build
+     * @param changeLogCulprits the background computation
+     * @return <code>false</code> if the computation is already started for the build
+     */
+    public static boolean put(@Nonnull Run<?, ?> build, @Nonnull Future<Set<User>> changeLogCulprits) {
+        return CULPRITS.putIfAbsent(build, changeLogCulprits) == null;
+    }
+    
+    /**
+     * Waits for the background computation.
+     * 
+     * @param build
+     * @return culprits of the build and previous failed builds.
+     *     <code>null</code> if not available.
+     * @see RootCulpritsRecipientProvider#getChangeLogCulprits(hudson.model.AbstractBuild, CulpritsStatistics)
+     */
+    @CheckForNull
+    public static Set<User> get(@Nonnull Run<?, ?> build) {
+        Future<Set<User>> f = CULPRITS.get(build);
+        if (f == null) {
+            return null;
+        }
+        try {
+            return f.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.log(Level.WARNING, "Timed out to wait for culprits computed in background", e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to compute culprits in background", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+    
+    /**
+     * Releases culprits of completed builds.
+     * Notifications are sent before {@link RunListener#onCompleted(Run, TaskListener)}.
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onCompleted(Run<?, ?> r, TaskListener listener) {
+            Future<Set<User>> f = CULPRITS.remove(r);
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+    }
+}
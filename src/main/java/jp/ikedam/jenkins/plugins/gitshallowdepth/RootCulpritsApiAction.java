@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.model.TransientBuildActionFactory;
+import hudson.model.User;
+
+/**
+ * Exposes culprits including root builds of a build
+ * in <code>/job/JOB/BUILD/rootCulprits/</code> as a JSON array.
+ * 
+ * Users are written as they are found, so that large results aren't held
+ * in the response.
+ * 
+ * Only culprits of upstream builds the caller can read are listed.
+ */
+public class RootCulpritsApiAction implements Action {
+    private final AbstractBuild<?, ?> build;
+    
+    public RootCulpritsApiAction(@Nonnull AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+    
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+    
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+    
+    @Override
+    public String getUrlName() {
+        return "rootCulprits";
+    }
+    
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        JsonCulprits culprits = new JsonCulprits(rsp.getWriter());
+        try {
+            RootCulpritsCache.addTo(build, culprits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!rsp.isCommitted()) {
+                rsp.sendError(StaplerResponse.SC_SERVICE_UNAVAILABLE);
+            }
+            return;
+        } catch (ExecutionException e) {
+            throw new ServletException(e);
+        }
+        culprits.close();
+    }
+    
+    /**
+     * Writes users to a JSON array as they are added.
+     */
+    private static class JsonCulprits extends HashSet<User> {
+        private static final long serialVersionUID = 1L;
+        
+        private final transient PrintWriter w;
+        private boolean first = true;
+        
+        public JsonCulprits(PrintWriter w) {
+            this.w = w;
+        }
+        
+        @Override
+        public boolean add(User user) {
+            if (!super.add(user)) {
+                return false;
+            }
+            w.write(first ? "[" : ",");
+            first = false;
+            JSONObject o = new JSONObject();
+            o.put("id", user.getId());
+            o.put("fullName", user.getFullName());
+            o.put("absoluteUrl", user.getAbsoluteUrl());
+            w.write(o.toString());
+            w.flush();
+            return true;
+        }
+        
+        public void close() {
+            w.write(first ? "[]" : "]");
+            w.flush();
+        }
+    }
+    
+    @Extension(optional=true)
+    public static class Factory extends TransientBuildActionFactory {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Collection<? extends Action> createFor(@SuppressWarnings("rawtypes") Run target) {
+            if (!EmailExtSupport.isAvailable() || !(target instanceof AbstractBuild)) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new RootCulpritsApiAction((AbstractBuild<?, ?>) target));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nonnull;
+
+import hudson.model.AbstractBuild;
+import hudson.model.User;
+import jenkins.model.Jenkins;
+
+/**
+ * Shares culprits computed by {@link RootCulpritsRecipientProvider}
+ * among clients of {@link RootCulpritsApiAction} and {@link RootCulpritsCommand}.
+ */
+class RootCulpritsCache {
+    /**
+     * The number of builds and users to hold culprits for.
+     */
+    public static int SIZE = Integer.getInteger(RootCulpritsCache.class.getName() + ".size", 100);
+    
+    private static final Map<String, FutureTask<Set<User>>> CACHE = new LinkedHashMap<String, FutureTask<Set<User>>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Set<User>>> eldest) {
+            return size() > SIZE;
+        }
+    };
+    
+    private RootCulpritsCache() {
+    }
+    
+    /**
+     * Culprits are computed as the caller,
+     * and include only ones of upstream builds the caller can read.
+     * They are computed once for concurrent clients of the same user,
+     * and cached if the build is completed.
+     * 
+     * @param build
+     * @return culprits of the build including ones of root builds of upstream builds.
+     *     Empty if email-ext isn't available.
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    @Nonnull
+    public static Set<User> get(@Nonnull AbstractBuild<?, ?> build) throws InterruptedException, ExecutionException {
+        if (!EmailExtSupport.isAvailable()) {
+            return Collections.emptySet();
+        }
+        Set<User> culprits = new HashSet<User>();
+        addTo(build, culprits);
+        return culprits;
+    }
+    
+    /**
+     * Adds culprits to the set, so that clients can stream them.
+     * 
+     * Culprits computed in this call are added as they are found.
+     * Ones cached or computed for a concurrent client are added at once.
+     * 
+     * @param build
+     * @param culprits an empty set to add culprits of the build including ones of root builds of upstream builds
+     * @throws InterruptedException
+     * @throws ExecutionException
+     * @see #get(AbstractBuild)
+     */
+    public static void addTo(@Nonnull final AbstractBuild<?, ?> build, @Nonnull final Set<User> culprits)
+            throws InterruptedException, ExecutionException
+    {
+        if (!EmailExtSupport.isAvailable()) {
+            return;
+        }
+        FutureTask<Set<User>> task = new FutureTask<Set<User>>(new Callable<Set<User>>() {
+            @Override
+            public Set<User> call() throws Exception {
+                RootCulpritsRecipientProvider.addCulprits(build, new CulpritsStatistics(), culprits);
+                return Collections.unmodifiableSet(new HashSet<User>(culprits));
+            }
+        });
+        if (build.isBuilding()) {
+            // culprits change until the build completes.
+            task.run();
+            task.get();
+            return;
+        }
+        String key = String.format("%s\n%s", Jenkins.getAuthentication().getName(), build.getExternalizableId());
+        FutureTask<Set<User>> current;
+        synchronized (CACHE) {
+            current = CACHE.get(key);
+            if (current == null) {
+                CACHE.put(key, task);
+            }
+        }
+        if (current != null) {
+            culprits.addAll(current.get());
+            return;
+        }
+        try {
+            task.run();
+            task.get();
+        } catch (ExecutionException e) {
+            synchronized (CACHE) {
+                CACHE.remove(key);
+            }
+            throw e;
+        }
+    }
+}
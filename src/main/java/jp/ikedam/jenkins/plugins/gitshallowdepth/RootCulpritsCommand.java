@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.HashSet;
+
+import org.kohsuke.args4j.Argument;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.User;
+
+/**
+ * Prints IDs of culprits including root builds of a build.
+ * 
+ * Only culprits of upstream builds the caller can read are printed.
+ * They are printed as they are found.
+ */
+@Extension(optional=true)
+public class RootCulpritsCommand extends CLICommand {
+    @Argument(metaVar="JOB", usage="Name of the job", required=true, index=0)
+    public AbstractProject<?, ?> job;
+    
+    @Argument(metaVar="BUILD", usage="Number of the build", required=true, index=1)
+    public int number;
+    
+    @Override
+    public String getName() {
+        return "root-culprits";
+    }
+    
+    @Override
+    public String getShortDescription() {
+        return Messages.RootCulpritsCommand_ShortDescription();
+    }
+    
+    @Override
+    protected int run() throws Exception {
+        if (!EmailExtSupport.isAvailable()) {
+            throw new AbortException("email-ext plugin is not available");
+        }
+        AbstractBuild<?, ?> build = job.getBuildByNumber(number);
+        if (build == null) {
+            throw new AbortException(String.format("No such build #%d", number));
+        }
+        RootCulpritsCache.addTo(build, new HashSet<User>() {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            public boolean add(User user) {
+                if (!super.add(user)) {
+                    return false;
+                }
+                stdout.println(user.getId());
+                stdout.flush();
+                return true;
+            }
+        });
+        return 0;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Starts computing culprits for {@link RootCulpritsRecipientProvider}
+ * in background as soon as the changelog is computed,
+ * so that the provider doesn't walk build histories
+ * while the build holds the executor in publishers.
+ */
+@Extension(optional=true)
+public class RootCulpritsPrecomputer extends SCMListener {
+    public static int THREADS = Integer.getInteger(RootCulpritsPrecomputer.class.getName() + ".threads", 2);
+    
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), RootCulpritsPrecomputer.class.getSimpleName())
+    );
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onChangeLogParsed(Run<?, ?> build, SCM scm, TaskListener listener, ChangeLogSet<?> changelog) throws Exception {
+        if (!(build instanceof AbstractBuild)) {
+            return;
+        }
+        final AbstractBuild<?, ?> b = (AbstractBuild<?, ?>) build;
+        if (PrecomputedCulprits.isStarted(b)) {
+            // called for each SCM.
+            return;
+        }
+        if (!EmailExtSupport.isAvailable()) {
+            return;
+        }
+        RootCulpritsRecipientProvider provider = RootCulpritsRecipientProvider.getProvider(b.getProject());
+        if (provider == null) {
+            return;
+        }
+        if (provider.isAggregateMatrix() && MatrixCulprits.getParentBuild(b) != null) {
+            // computed only for the parent build.
+            return;
+        }
+        Future<Set<User>> f = EXECUTOR.submit(new Callable<Set<User>>() {
+            @Override
+            public Set<User> call() throws Exception {
+                SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    return RootCulpritsRecipientProvider.getChangeLogCulprits(b, new CulpritsStatistics());
+                } finally {
+                    SecurityContextHolder.setContext(orig);
+                }
+            }
+        });
+        if (!PrecomputedCulprits.put(b, f)) {
+            f.cancel(true);
+        }
+    }
+}
@@ -26,41 +26,121 @@
 package jp.ikedam.jenkins.plugins.gitshallowdepth;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.annotation.CheckForNull;
 import javax.mail.internet.InternetAddress;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Item;
 import hudson.model.Result;
 import hudson.model.User;
 import hudson.model.AbstractBuild.DependencyChange;
 import hudson.plugins.emailext.EmailRecipientUtils;
+import hudson.plugins.emailext.ExtendedEmailPublisher;
 import hudson.plugins.emailext.ExtendedEmailPublisherContext;
+import hudson.plugins.emailext.plugins.EmailTrigger;
 import hudson.plugins.emailext.plugins.RecipientProvider;
 import hudson.plugins.emailext.plugins.RecipientProviderDescriptor;
 import hudson.scm.ChangeLogSet.Entry;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.gitshallowdepth.CulpritsStatistics.Phase;
 
 /**
  *
  */
 public class RootCulpritsRecipientProvider extends RecipientProvider {
+    private static final Logger LOGGER = Logger.getLogger(RootCulpritsRecipientProvider.class.getName());
+    
+    /**
+     * Milliseconds to compute culprits to report details in the build log.
+     */
+    public static long SLOW_THRESHOLD = Long.getLong(RootCulpritsRecipientProvider.class.getName() + ".slowThreshold", 10000L);
+    
+    private boolean aggregateMatrix;
+    private Integer coalescingWindow;
+    
     @DataBoundConstructor
     public RootCulpritsRecipientProvider() {
     }
     
+    @DataBoundSetter
+    public void setAggregateMatrix(boolean aggregateMatrix) {
+        this.aggregateMatrix = aggregateMatrix;
+    }
+    
+    /**
+     * @return whether to send culprits of a matrix build only from the parent build
+     */
+    public boolean isAggregateMatrix() {
+        return aggregateMatrix;
+    }
+    
+    @DataBoundSetter
+    public void setCoalescingWindow(Integer coalescingWindow) {
+        this.coalescingWindow = coalescingWindow;
+    }
+    
+    /**
+     * @return minutes to coalesce notifications of successive failures
+     */
+    @CheckForNull
+    public Integer getCoalescingWindow() {
+        return coalescingWindow;
+    }
+    
     /**
      * {@inheritDoc}
      */
     @Override
     public void addRecipients(ExtendedEmailPublisherContext context, EnvVars env, Set<InternetAddress> to, Set<InternetAddress> cc, Set<InternetAddress> bcc) {
-        Set<User> users = getCulprits(context.getBuild());
+        AbstractBuild<?, ?> build = context.getBuild();
+        if (isAggregateMatrix()) {
+            AbstractBuild<?, ?> parent = MatrixCulprits.getParentBuild(build);
+            if (parent != null) {
+                context.getListener().getLogger().println(String.format(
+                        "Culprits are notified with %s",
+                        parent.getFullDisplayName()
+                ));
+                return;
+            }
+        }
+        CulpritsStatistics stats = new CulpritsStatistics();
+        Set<User> users = getCulprits(build, stats);
+        if (isAggregateMatrix()) {
+            users.addAll(getFailedRunsCulprits(build, context, stats));
+        }
+        boolean coalesced = isCoalesced(build);
+        if (getCoalescingWindow() != null && getCoalescingWindow() > 0) {
+            synchronized (build) {
+                // addRecipients is called for each trigger.
+                if (build.getAction(NotifiedCulpritsAction.class) == null) {
+                    build.addAction(new NotifiedCulpritsAction(users, !coalesced));
+                }
+            }
+        }
+        if (coalesced) {
+            context.getListener().getLogger().println(String.format(
+                    "Culprits are notified with a later failure after %d minutes from the last notification",
+                    getCoalescingWindow()
+            ));
+            return;
+        }
+        users.addAll(getCoalescedCulprits(build));
+        long start = System.nanoTime();
         for (User user: users) {
+            stats.resolveUser();
             if (!EmailRecipientUtils.isExcludedRecipient(user, context.getListener())) {
                 String userAddress = EmailRecipientUtils.getUserConfiguredEmail(user);
                 if (userAddress != null) {
@@ -68,48 +148,246 @@ public class RootCulpritsRecipientProvider extends RecipientProvider {
                 }
             }
         }
+        stats.end(Phase.ADDRESSES, start);
+        report(context, stats);
+    }
+    
+    /**
+     * @param build
+     * @return whether a failure in the streak of the build
+     *     was notified within the coalescing window
+     */
+    private boolean isCoalesced(AbstractBuild<?, ?> build) {
+        if (getCoalescingWindow() == null || getCoalescingWindow() <= 0) {
+            return false;
+        }
+        Result result = build.getResult();
+        if (result == null || !result.isWorseThan(Result.SUCCESS)) {
+            return false;
+        }
+        long since = build.getTimeInMillis() - getCoalescingWindow() * 60L * 1000L;
+        for (
+                AbstractBuild<?, ?> p = build.getPreviousCompletedBuild();
+                p != null && p.getTimeInMillis() >= since;
+                p = p.getPreviousCompletedBuild()
+        ) {
+            Result pr = p.getResult();
+            if (pr == null || !pr.isWorseThan(Result.SUCCESS)) {
+                return false;
+            }
+            NotifiedCulpritsAction action = p.getAction(NotifiedCulpritsAction.class);
+            if (action != null && action.isNotified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Culprits of coalesced failures are sent with the next notified build,
+     * whether it is a failure after the window or a success ending the streak.
+     * 
+     * @param build
+     * @return culprits of previous failures coalesced into the build
+     */
+    private static Set<User> getCoalescedCulprits(AbstractBuild<?, ?> build) {
+        Set<User> r = new HashSet<User>();
+        for (AbstractBuild<?, ?> p = build.getPreviousCompletedBuild(); p != null; p = p.getPreviousCompletedBuild()) {
+            Result pr = p.getResult();
+            NotifiedCulpritsAction action = p.getAction(NotifiedCulpritsAction.class);
+            if (pr == null || !pr.isWorseThan(Result.SUCCESS) || action == null || action.isNotified()) {
+                break;
+            }
+            r.addAll(action.getCulprits());
+        }
+        return r;
+    }
+    
+    private static void report(ExtendedEmailPublisherContext context, CulpritsStatistics stats) {
+        String message = String.format(
+                "Computed culprits including root builds for %s: %s",
+                context.getBuild().getFullDisplayName(),
+                stats
+        );
+        LOGGER.fine(message);
+        if (stats.getTotalMillis() >= SLOW_THRESHOLD || LOGGER.isLoggable(Level.FINE)) {
+            context.getListener().getLogger().println(message);
+        }
     }
     
     /**
+     * Children of a matrix build share the changelog of the parent build,
+     * but upstream builds are recorded for each child.
+     * 
      * @param build
-     * @return
+     * @param context
+     * @param stats
+     * @return culprits of upstream builds of failed children
+     */
+    private static Set<User> getFailedRunsCulprits(AbstractBuild<?, ?> build, ExtendedEmailPublisherContext context, CulpritsStatistics stats) {
+        Set<User> r = new HashSet<User>();
+        List<AbstractBuild<?, ?>> runs = MatrixCulprits.getFailedRuns(build);
+        if (runs.isEmpty()) {
+            return r;
+        }
+        context.getListener().getLogger().println(String.format(
+                "Failed configurations: %s",
+                MatrixCulprits.getFailedConfigurations(build)
+        ));
+        for (AbstractBuild<?, ?> run: runs) {
+            addUpstreamCulprits(run, stats, r);
+        }
+        return r;
+    }
+    
+    /**
+     * @param build
+     * @param stats
+     * @return culprits of the build including ones of root builds of upstream builds
      * @see AbstractBuild#getCulprits()
      */
-    private Set<User> getCulprits(AbstractBuild<?, ?> build) {
+    static Set<User> getCulprits(AbstractBuild<?, ?> build, CulpritsStatistics stats) {
+        Set<User> r = new HashSet<User>();
+        addCulprits(build, stats, r);
+        return r;
+    }
+    
+    /**
+     * Adds culprits to the set as they are found,
+     * so that callers can stream them.
+     * 
+     * @param build
+     * @param stats
+     * @param r the set to add culprits of the build including ones of root builds of upstream builds
+     * @see #getCulprits(AbstractBuild, CulpritsStatistics)
+     */
+    static void addCulprits(AbstractBuild<?, ?> build, CulpritsStatistics stats, Set<User> r) {
+        boolean system = isSystem();
+        // culprits computed as SYSTEM may include ones of upstream builds others cannot read.
+        NotifiedCulpritsAction notified = system ? build.getAction(NotifiedCulpritsAction.class) : null;
+        if (notified != null) {
+            // computed when the build notified.
+            r.addAll(notified.getCulprits());
+            return;
+        }
+        long start = System.nanoTime();
+        Set<User> changeLogCulprits = system ? PrecomputedCulprits.get(build) : null;
+        stats.end(Phase.PRECOMPUTED, start);
+        if (changeLogCulprits != null) {
+            r.addAll(changeLogCulprits);
+        } else {
+            addChangeLogCulprits(build, stats, r);
+        }
+        addUpstreamCulprits(build, stats, r);
+    }
+    
+    /**
+     * Culprits available right after the changelog is computed.
+     * 
+     * @param build
+     * @param stats
+     * @return culprits of the build and previous failed builds
+     */
+    static Set<User> getChangeLogCulprits(AbstractBuild<?, ?> build, CulpritsStatistics stats) {
         Set<User> r = new HashSet<User>();
+        addChangeLogCulprits(build, stats, r);
+        return r;
+    }
+    
+    /**
+     * @param build
+     * @param stats
+     * @param r the set to add culprits of the build and previous failed builds
+     * @see #getChangeLogCulprits(AbstractBuild, CulpritsStatistics)
+     */
+    private static void addChangeLogCulprits(AbstractBuild<?, ?> build, CulpritsStatistics stats, Set<User> r) {
+        stats.visitBuild();
+        long start = System.nanoTime();
         AbstractBuild<?, ?> p = build.getPreviousCompletedBuild();
+        stats.end(Phase.PREVIOUS_BUILDS, start);
         if (p != null && p.isBuilding()) {
             Result pr = p.getResult();
             if (pr != null && pr.isWorseThan(Result.SUCCESS)) {
-                r.addAll(getCulprits(p));
+                addCulprits(p, stats, r);
             }
         }
+        start = System.nanoTime();
         for (Entry e: build.getChangeSet()) {
             r.add(e.getAuthor());
         }
-        
-        // upstream culprits
+        stats.parseChangeSet();
+        stats.end(Phase.CHANGESETS, start);
+    }
+    
+    /**
+     * Culprits available only after fingerprints are recorded.
+     * 
+     * @param build
+     * @param stats
+     * @param r the set to add culprits of upstream builds and their root builds
+     */
+    private static void addUpstreamCulprits(AbstractBuild<?, ?> build, CulpritsStatistics stats, Set<User> r) {
         if (build.getPreviousNotFailedBuild() != null) {
+            long start = System.nanoTime();
             @SuppressWarnings("rawtypes")
             Map <AbstractProject, DependencyChange> depmap = build.getDependencyChanges(build.getPreviousSuccessfulBuild());
+            stats.end(Phase.DEPENDENCY_CHANGES, start);
             for (DependencyChange dep : depmap.values()) {
+                if (!dep.project.hasPermission(Item.READ)) {
+                    // never expose committers of jobs the caller cannot see.
+                    continue;
+                }
                 for (AbstractBuild<?,?> b : dep.getBuilds()) {
+                    stats.visitBuild();
+                    start = System.nanoTime();
                     for (Entry entry : b.getChangeSet()) {
                         r.add(entry.getAuthor());
                     }
+                    stats.parseChangeSet();
+                    stats.end(Phase.UPSTREAM_CHANGESETS, start);
                     
                     // When you use ShallowDepthCloneOption#setDisableForMatrixParent,
                     // You cannot retrieve full changelogs from a child build.
+                    start = System.nanoTime();
                     AbstractBuild<?, ?> root = b.getRootBuild();
                     if (root != null && root != b) {
+                        stats.visitBuild();
                         for (Entry entry : root.getChangeSet()) {
                             r.add(entry.getAuthor());
                         }
+                        stats.parseChangeSet();
                     }
+                    stats.end(Phase.ROOT_CHANGESETS, start);
                 }
             }
         }
-        return r;
+    }
+    
+    /**
+     * @return whether running as SYSTEM, e.g. in builds
+     */
+    static boolean isSystem() {
+        return ACL.SYSTEM.getName().equals(Jenkins.getAuthentication().getName());
+    }
+    
+    /**
+     * @param project
+     * @return {@link RootCulpritsRecipientProvider} configured in the project
+     */
+    @CheckForNull
+    static RootCulpritsRecipientProvider getProvider(AbstractProject<?, ?> project) {
+        ExtendedEmailPublisher publisher = project.getPublishersList().get(ExtendedEmailPublisher.class);
+        if (publisher == null) {
+            return null;
+        }
+        for (EmailTrigger trigger: publisher.getConfiguredTriggers()) {
+            for (RecipientProvider provider: trigger.getEmail().getRecipientProviders()) {
+                if (provider instanceof RootCulpritsRecipientProvider) {
+                    return (RootCulpritsRecipientProvider) provider;
+                }
+            }
+        }
+        return null;
     }
     
     @Extension(optional=true)
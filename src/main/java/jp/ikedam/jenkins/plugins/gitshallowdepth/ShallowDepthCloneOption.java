@@ -24,25 +24,57 @@
 
 package jp.ikedam.jenkins.plugins.gitshallowdepth;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.gitclient.CheckoutCommand;
+import org.jenkinsci.plugins.gitclient.FetchCommand;
 import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.JGitTool;
+import org.jenkinsci.plugins.gitclient.RepositoryCallback;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Plugin;
+import hudson.Util;
 import hudson.matrix.MatrixProject;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Executor;
 import hudson.model.TaskListener;
 import hudson.model.Job;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.BuildData;
 import hudson.plugins.git.extensions.GitSCMExtensionDescriptor;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import hudson.plugins.git.extensions.GitSCMExtension;
 
@@ -50,8 +82,68 @@ import hudson.plugins.git.extensions.GitSCMExtension;
  * Enables shallow clone and specify its depth.
  */
 public class ShallowDepthCloneOption extends GitSCMExtension {
+    private static final Logger LOGGER = Logger.getLogger(ShallowDepthCloneOption.class.getName());
+    
+    /**
+     * The maximum depth to deepen the history to find the previously built revision.
+     */
+    public static int MAX_CHANGELOG_DEPTH = Integer.getInteger(ShallowDepthCloneOption.class.getName() + ".maxChangelogDepth", 1024);
+    
+    private static final String LFS_STORAGE_DIR = "caches/git-shallow-depth/lfs";
+    
+    /**
+     * The git configuration recording the depth the workspace is cloned with.
+     */
+    private static final String WORKSPACE_CONFIG_SECTION = "jenkins";
+    private static final String WORKSPACE_DEPTH_NAME = "shallowDepth";
+    
+    /**
+     * Marks workspaces to prune objects beyond the depth
+     * in {@link ShallowRepositoryMaintenance}.
+     */
+    static final String WORKSPACE_PRUNE_KEY = "jenkins.shallowPrune";
+    private static final String WORKSPACE_PRUNE_NAME = "shallowPrune";
+    
+    /**
+     * The value of threads to size them to the processors for each executor of the node.
+     */
+    public static final String AUTO = "auto";
+    
+    /**
+     * State of the checkout of each build shared among hooks.
+     * Held only in memory.
+     */
+    private static final Map<Run<?, ?>, CheckoutState> CHECKOUTS
+        = Collections.synchronizedMap(new WeakHashMap<Run<?, ?>, CheckoutState>());
+    
+    /**
+     * Processors of each node, not to ask the node every time the environment is built.
+     * Held while the node is connected.
+     */
+    private static final Map<VirtualChannel, Integer> PROCESSORS
+        = Collections.synchronizedMap(new WeakHashMap<VirtualChannel, Integer>());
+    
     private final Integer depth;
     private boolean disableForMatrixParent;
+    private boolean exactChangelog;
+    private Integer submoduleDepth;
+    private Integer submoduleJobs;
+    private boolean prewarm;
+    private Integer maxRepositorySize;
+    private Integer cloneTimeout;
+    private boolean repositoryMaintenance;
+    private boolean protocolV2;
+    private String negotiationAlgorithm;
+    private boolean snapshotCache;
+    private boolean lfsPull;
+    private String lfsInclude;
+    private Integer lfsConcurrentTransfers;
+    private boolean lfsSharedStorage;
+    private boolean cloneTrace;
+    private String checkoutWorkers;
+    private String packThreads;
+    private Integer compressionLevel;
+    private boolean singleFlight;
     
     public ShallowDepthCloneOption() {
         this(null);
@@ -61,6 +153,7 @@ public class ShallowDepthCloneOption extends GitSCMExtension {
     public ShallowDepthCloneOption(Integer depth) {
         this.depth = depth;
         this.disableForMatrixParent = false;
+        this.exactChangelog = false;
     }
     
     public Integer getDepth() {
@@ -76,19 +169,1041 @@ public class ShallowDepthCloneOption extends GitSCMExtension {
         return disableForMatrixParent;
     }
     
+    @DataBoundSetter
+    public void setExactChangelog(boolean exactChangelog) {
+        this.exactChangelog = exactChangelog;
+    }
+    
+    public boolean isExactChangelog() {
+        return exactChangelog;
+    }
+    
+    @DataBoundSetter
+    public void setSubmoduleDepth(Integer submoduleDepth) {
+        this.submoduleDepth = submoduleDepth;
+    }
+    
+    public Integer getSubmoduleDepth() {
+        return submoduleDepth;
+    }
+    
+    @DataBoundSetter
+    public void setSubmoduleJobs(Integer submoduleJobs) {
+        this.submoduleJobs = submoduleJobs;
+    }
+    
+    public Integer getSubmoduleJobs() {
+        return submoduleJobs;
+    }
+    
+    @DataBoundSetter
+    public void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+    
+    public boolean isPrewarm() {
+        return prewarm;
+    }
+    
+    @DataBoundSetter
+    public void setMaxRepositorySize(Integer maxRepositorySize) {
+        this.maxRepositorySize = maxRepositorySize;
+    }
+    
+    /**
+     * @return the maximum size of the repository in MiB
+     */
+    public Integer getMaxRepositorySize() {
+        return maxRepositorySize;
+    }
+    
+    @DataBoundSetter
+    public void setCloneTimeout(Integer cloneTimeout) {
+        this.cloneTimeout = cloneTimeout;
+    }
+    
+    /**
+     * @return timeout for clone and fetch in minutes
+     */
+    public Integer getCloneTimeout() {
+        return cloneTimeout;
+    }
+    
+    @DataBoundSetter
+    public void setRepositoryMaintenance(boolean repositoryMaintenance) {
+        this.repositoryMaintenance = repositoryMaintenance;
+    }
+    
+    public boolean isRepositoryMaintenance() {
+        return repositoryMaintenance;
+    }
+    
+    @DataBoundSetter
+    public void setProtocolV2(boolean protocolV2) {
+        this.protocolV2 = protocolV2;
+    }
+    
+    public boolean isProtocolV2() {
+        return protocolV2;
+    }
+    
+    @DataBoundSetter
+    public void setNegotiationAlgorithm(String negotiationAlgorithm) {
+        this.negotiationAlgorithm = Util.fixEmptyAndTrim(negotiationAlgorithm);
+    }
+    
+    /**
+     * @return the value for <code>fetch.negotiationAlgorithm</code>.
+     *     <code>null</code> for the default of git.
+     */
+    @CheckForNull
+    public String getNegotiationAlgorithm() {
+        return negotiationAlgorithm;
+    }
+    
+    @DataBoundSetter
+    public void setSnapshotCache(boolean snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+    
+    public boolean isSnapshotCache() {
+        return snapshotCache;
+    }
+    
+    @DataBoundSetter
+    public void setLfsPull(boolean lfsPull) {
+        this.lfsPull = lfsPull;
+    }
+    
+    /**
+     * @return whether to skip smudge in checkout and pull LFS objects afterwards
+     */
+    public boolean isLfsPull() {
+        return lfsPull;
+    }
+    
+    @DataBoundSetter
+    public void setLfsInclude(String lfsInclude) {
+        this.lfsInclude = Util.fixEmptyAndTrim(lfsInclude);
+    }
+    
+    /**
+     * @return comma separated patterns of paths to pull LFS objects for.
+     *     <code>null</code> for all paths.
+     */
+    @CheckForNull
+    public String getLfsInclude() {
+        return lfsInclude;
+    }
+    
+    @DataBoundSetter
+    public void setLfsConcurrentTransfers(Integer lfsConcurrentTransfers) {
+        this.lfsConcurrentTransfers = lfsConcurrentTransfers;
+    }
+    
+    public Integer getLfsConcurrentTransfers() {
+        return lfsConcurrentTransfers;
+    }
+    
+    @DataBoundSetter
+    public void setLfsSharedStorage(boolean lfsSharedStorage) {
+        this.lfsSharedStorage = lfsSharedStorage;
+    }
+    
+    /**
+     * @return whether to store LFS objects in a directory shared by workspaces on the node
+     */
+    public boolean isLfsSharedStorage() {
+        return lfsSharedStorage;
+    }
+    
+    @DataBoundSetter
+    public void setCloneTrace(boolean cloneTrace) {
+        this.cloneTrace = cloneTrace;
+    }
+    
+    /**
+     * @return whether to record time spent in each phase of clone and checkout
+     */
+    public boolean isCloneTrace() {
+        return cloneTrace;
+    }
+    
+    @DataBoundSetter
+    public void setCheckoutWorkers(String checkoutWorkers) {
+        this.checkoutWorkers = Util.fixEmptyAndTrim(checkoutWorkers);
+    }
+    
+    /**
+     * @return the number of parallel checkout workers, or {@link #AUTO}
+     */
+    @CheckForNull
+    public String getCheckoutWorkers() {
+        return checkoutWorkers;
+    }
+    
+    @DataBoundSetter
+    public void setPackThreads(String packThreads) {
+        this.packThreads = Util.fixEmptyAndTrim(packThreads);
+    }
+    
+    /**
+     * @return the number of threads for index-pack and pack, or {@link #AUTO}
+     */
+    @CheckForNull
+    public String getPackThreads() {
+        return packThreads;
+    }
+    
+    @DataBoundSetter
+    public void setCompressionLevel(Integer compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * @return the compression level (-1 to 9)
+     */
+    @CheckForNull
+    public Integer getCompressionLevel() {
+        return compressionLevel;
+    }
+    
+    @DataBoundSetter
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+    
+    /**
+     * @return whether concurrent clones of the same commit on a node share a single fetch
+     */
+    public boolean isSingleFlight() {
+        return singleFlight;
+    }
+    
+    /**
+     * Passes transport configurations to git launched for clone and fetch.
+     * They aren't passed to git in build steps, not to override the configuration of users.
+     */
+    @Override
+    public void populateEnvironmentVariables(GitSCM scm, Map<String, String> env) {
+        if (isCloneTrace()) {
+            populateTraceEnvironment(env);
+        }
+        if (isCheckoutCompleted()) {
+            // Settings for the checkout aren't applied to git in build steps.
+            return;
+        }
+        if (isLfsPull()) {
+            // LFS objects are pulled in onCheckoutCompleted.
+            env.put("GIT_LFS_SKIP_SMUDGE", "1");
+        }
+        if (isProtocolV2()) {
+            // git sends ref prefixes from refspecs with protocol v2,
+            // and the server advertises only refs matching them.
+            GitConfigEnvironment.add(env, "protocol.version", "2");
+        }
+        if (getNegotiationAlgorithm() != null) {
+            GitConfigEnvironment.add(env, "fetch.negotiationAlgorithm", getNegotiationAlgorithm());
+        }
+        String workers = resolveThreads(getCheckoutWorkers());
+        if (workers != null) {
+            GitConfigEnvironment.add(env, "checkout.workers", workers);
+        }
+        String threads = resolveThreads(getPackThreads());
+        if (threads != null) {
+            // index-pack run in clones and fetches uses pack.threads.
+            GitConfigEnvironment.add(env, "pack.threads", threads);
+        }
+        if (getCompressionLevel() != null) {
+            GitConfigEnvironment.add(env, "core.compression", Integer.toString(getCompressionLevel()));
+        }
+    }
+    
+    /**
+     * @return whether the checkout of the current build is completed
+     */
+    private static boolean isCheckoutCompleted() {
+        Executor executor = Executor.currentExecutor();
+        if (executor == null || !(executor.getCurrentExecutable() instanceof Run)) {
+            return false;
+        }
+        CheckoutState state = CHECKOUTS.get((Run<?, ?>) executor.getCurrentExecutable());
+        return state != null && state.completed;
+    }
+    
+    /**
+     * Resolves {@link #AUTO} to the processors of the current node
+     * divided by its executors, not to oversubscribe the node
+     * with concurrent builds.
+     * 
+     * @param threads
+     * @return the number of threads, or <code>null</code> not to configure
+     */
+    @CheckForNull
+    static String resolveThreads(@CheckForNull String threads) {
+        if (!AUTO.equals(threads)) {
+            return threads;
+        }
+        Computer c = Computer.currentComputer();
+        Node node = (c != null) ? c.getNode() : null;
+        FilePath root = (node != null) ? node.getRootPath() : null;
+        if (root == null || root.getChannel() == null) {
+            return null;
+        }
+        Integer processors = PROCESSORS.get(root.getChannel());
+        if (processors == null) {
+            try {
+                processors = root.act(new ProcessorsCallable());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to count processors of " + node.getDisplayName(), e);
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            PROCESSORS.put(root.getChannel(), processors);
+        }
+        return Integer.toString(Math.max(1, processors / Math.max(1, node.getNumExecutors())));
+    }
+    
+    private static class ProcessorsCallable implements FilePath.FileCallable<Integer> {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        public Integer invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+    
+    /**
+     * Let git launched for the checkout write trace2 events.
+     * 
+     * The environment is also used for build steps,
+     * and they aren't traced once the checkout completes.
+     * The directory is created in {@link #beforeCheckout(GitSCM, Run, GitClient, TaskListener)},
+     * as the environment is built many times in a build.
+     */
+    private void populateTraceEnvironment(Map<String, String> env) {
+        Executor executor = Executor.currentExecutor();
+        if (executor == null || !(executor.getCurrentExecutable() instanceof AbstractBuild)) {
+            return;
+        }
+        AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) executor.getCurrentExecutable();
+        CloneTraceAction action = build.getAction(CloneTraceAction.class);
+        FilePath workspace = build.getWorkspace();
+        if ((action != null && action.isCompleted()) || workspace == null) {
+            return;
+        }
+        // Each git process writes to its own file in the directory.
+        env.put("GIT_TRACE2_EVENT", CloneTraceAction.getTraceDir(workspace).getRemote());
+    }
+    
+    private static class CheckoutState {
+        /**
+         * Whether the workspace had no repository before the checkout.
+         */
+        public boolean fresh;
+        
+        /**
+         * Whether the repository is restored from a snapshot.
+         */
+        public boolean restored;
+        
+        /**
+         * The depth resolved for the checkout.
+         */
+        public Integer depth;
+        
+        /**
+         * Whether the checkout is completed.
+         */
+        public boolean completed;
+        
+        /**
+         * Whether the repository is converted to the depth.
+         */
+        public boolean converted;
+    }
+    
+    @Nonnull
+    private static CheckoutState getCheckoutState(@Nonnull Run<?, ?> build) {
+        synchronized (CHECKOUTS) {
+            CheckoutState state = CHECKOUTS.get(build);
+            if (state == null) {
+                state = new CheckoutState();
+                CHECKOUTS.put(build, state);
+            }
+            return state;
+        }
+    }
+    
+    /**
+     * @param build
+     * @return whether shallow clone is applied to the build
+     */
+    boolean isShallowEnabled(@Nonnull Run<?, ?> build) {
+        return !(isDisableForMatrixParent() && isMatrixParent(build.getParent()));
+    }
+    
+    /**
+     * Starts watching the size of the repository
+     * before it is cloned or fetched,
+     * and converts the existing workspace to the configured depth.
+     */
+    @Override
+    public void beforeCheckout(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException, GitException
+    {
+        if (isCloneTrace()) {
+            CloneTraceAction action = build.getAction(CloneTraceAction.class);
+            boolean started = (action != null);
+            if (!started) {
+                action = new CloneTraceAction();
+                build.addAction(action);
+            }
+            if (build instanceof AbstractBuild && ((AbstractBuild<?, ?>) build).getWorkspace() != null) {
+                FilePath traceDir = CloneTraceAction.getTraceDir(((AbstractBuild<?, ?>) build).getWorkspace());
+                if (!started && traceDir.isDirectory()) {
+                    // traces left by a previous build aborted in checkout.
+                    traceDir.deleteContents();
+                }
+                traceDir.mkdirs();
+            }
+            action.start("clone and fetch");
+        }
+        if (getMaxRepositorySize() != null && getMaxRepositorySize() > 0) {
+            CloneWatchdog.start(
+                    build,
+                    git.getWorkTree().child(".git"),
+                    getMaxRepositorySize() * 1024L * 1024L,
+                    listener
+            );
+        }
+        CheckoutState state = new CheckoutState();
+        CHECKOUTS.put(build, state);
+        state.fresh = !git.hasGitRepo();
+        if (isSingleFlight() && !state.fresh) {
+            // a checkout failed after cloning may leave the remote pointing the shared repository.
+            SingleFlightClone.restoreRemoteUrl(scm, build, git, listener);
+        }
+        if (isSnapshotCache() && getCheckoutDepth(scm, build, listener) != 0) {
+            state.restored = restoreSnapshot(scm, build, git, listener);
+        }
+        if (git.hasGitRepo() && !isJGit(scm, listener)) {
+            convertWorkspace(scm, build, git, listener);
+        }
+    }
+    
+    /**
+     * Deepens, unshallows or re-shallows the existing workspace
+     * when it was cloned with a depth different from the configured one,
+     * instead of cloning it again.
+     * 
+     * Workspaces without the recorded depth are left as they are.
+     * Objects beyond the new depth are pruned in {@link ShallowRepositoryMaintenance}
+     * if it is enabled, as pruning can take long for large repositories.
+     */
+    private void convertWorkspace(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        String value = git.withRepository(new GetConfigCallback(WORKSPACE_CONFIG_SECTION, WORKSPACE_DEPTH_NAME));
+        if (value == null) {
+            return;
+        }
+        int current;
+        try {
+            current = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        int configured = getCheckoutDepth(scm, build, listener);
+        if (current == configured) {
+            return;
+        }
+        if (configured == 0) {
+            listener.getLogger().println("Converting the workspace to the full history");
+        } else {
+            listener.getLogger().println(String.format("Converting the workspace to depth %d", configured));
+        }
+        try {
+            for (RemoteConfig rc: scm.getParamExpandedRepos(build, listener)) {
+                if (rc.getURIs().isEmpty()) {
+                    continue;
+                }
+                // git unshallows the history with the depth 2147483647.
+                FetchCommand fetch = git.fetch_()
+                    .from(rc.getURIs().get(0), rc.getFetchRefSpecs())
+                    .shallow(true)
+                    .depth((configured == 0) ? Integer.MAX_VALUE : configured);
+                decorateFetchCommand(scm, git, listener, fetch);
+                fetch.execute();
+            }
+            getCheckoutState(build).converted = true;
+            if (configured != 0 && (current == 0 || configured < current)) {
+                if (isRepositoryMaintenance()) {
+                    listener.getLogger().println("Objects beyond the new depth are pruned in the next repository maintenance");
+                    git.withRepository(new SetConfigCallback(WORKSPACE_CONFIG_SECTION, WORKSPACE_PRUNE_NAME, "true"));
+                } else {
+                    listener.getLogger().println("Pruning objects beyond the new depth. This can take long for large repositories.");
+                    pruneWorkspace(GitCommandLauncher.forBuild(scm, build, git, listener));
+                }
+            }
+        } catch (GitException e) {
+            e.printStackTrace(listener.error("Failed to convert the workspace"));
+        }
+    }
+    
+    /**
+     * Commands to remove objects beyond the depth of the workspace.
+     */
+    static final String[][] PRUNE_COMMANDS = {
+        // commits beyond the new boundary are still referred from reflogs.
+        {"reflog", "expire", "--expire=now", "--all"},
+        {"gc", "--prune=now"},
+    };
+    
+    /**
+     * Removes objects beyond the depth of the workspace.
+     * 
+     * @param launcher
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws GitException
+     */
+    static void pruneWorkspace(@Nonnull GitCommandLauncher launcher)
+            throws IOException, InterruptedException, GitException
+    {
+        for (String[] command: PRUNE_COMMANDS) {
+            launcher.run(command);
+        }
+    }
+    
+    /**
+     * Records the depth the workspace is cloned with.
+     * 
+     * Recorded only when this option cloned, restored or converted the workspace in this checkout,
+     * as the history of other workspaces may not match the depth.
+     */
+    private void recordWorkspaceDepth(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        CheckoutState state = getCheckoutState(build);
+        if (!state.fresh && !state.restored && !state.converted) {
+            return;
+        }
+        git.withRepository(new SetConfigCallback(
+                WORKSPACE_CONFIG_SECTION,
+                WORKSPACE_DEPTH_NAME,
+                Integer.toString(getCheckoutDepth(scm, build, listener))
+        ));
+    }
+    
+    private static class GetConfigCallback implements RepositoryCallback<String> {
+        private static final long serialVersionUID = 1L;
+        private final String section;
+        private final String name;
+        
+        public GetConfigCallback(String section, String name) {
+            this.section = section;
+            this.name = name;
+        }
+        
+        @Override
+        public String invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            return repo.getConfig().getString(section, null, name);
+        }
+    }
+    
+    private static class SetConfigCallback implements RepositoryCallback<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String section;
+        private final String name;
+        private final String value;
+        
+        public SetConfigCallback(String section, String name, String value) {
+            this.section = section;
+            this.name = name;
+            this.value = value;
+        }
+        
+        @Override
+        public Void invoke(Repository repo, VirtualChannel channel) throws IOException, InterruptedException {
+            StoredConfig config = repo.getConfig();
+            config.setString(section, null, name, value);
+            config.save();
+            return null;
+        }
+    }
+    
+    /**
+     * Resolves the depth once in a checkout.
+     * All hooks in a checkout use this,
+     * so that they agree on the depth even if the policy changes meanwhile.
+     */
+    private int getCheckoutDepth(GitSCM scm, Run<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        CheckoutState state = getCheckoutState(build);
+        synchronized (state) {
+            if (state.depth == null) {
+                state.depth = getConfiguredDepth(scm, build, listener);
+            }
+            return state.depth;
+        }
+    }
+    
+    /**
+     * Resolves the depth from the configuration and {@link DepthPolicyConfiguration}.
+     * 
+     * @param scm
+     * @param build
+     * @param listener
+     * @return the depth the build is configured to clone with.
+     *     0 for the full history.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    int getConfiguredDepth(@Nonnull GitSCM scm, @Nonnull Run<?, ?> build, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        if (!isShallowEnabled(build)) {
+            return 0;
+        }
+        Integer depth = getDepth();
+        if (depth == null) {
+            DepthPolicyRule rule = getPolicyRule(scm, build, listener);
+            if (rule != null) {
+                if (!rule.isShallow()) {
+                    return 0;
+                }
+                depth = rule.getDepth();
+            }
+        }
+        // git-client clones with depth 1 if not specified.
+        return (depth != null && depth > 0) ? depth : 1;
+    }
+    
+    private static boolean isJGit(GitSCM scm, TaskListener listener) {
+        return JGitTool.MAGIC_EXENAME.equals(GitCommandLauncher.getGitExe(scm, GitCommandLauncher.currentNode(), listener));
+    }
+    
+    /**
+     * @return whether a snapshot is restored
+     */
+    private boolean restoreSnapshot(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        if (git.hasGitRepo()) {
+            return false;
+        }
+        String url = getRemoteUrl(scm, build, listener);
+        if (url == null) {
+            return false;
+        }
+        ObjectId head = WorkspaceSnapshotCache.getRemoteHead(scm, build, git, url, listener);
+        if (head == null) {
+            return false;
+        }
+        String key = WorkspaceSnapshotCache.getKey(url, head, getCheckoutDepth(scm, build, listener));
+        FilePath gitDir = git.getWorkTree().child(".git");
+        WorkspaceSnapshotCache cache = WorkspaceSnapshotCache.forCurrentNode(listener);
+        if (cache != null && cache.restore(key, gitDir)) {
+            listener.getLogger().println(String.format("Restored a snapshot of %s", head.name()));
+            return true;
+        }
+        for (SnapshotCacheBackend backend: getSnapshotCacheBackends()) {
+            boolean verified = false;
+            try {
+                if (!backend.restore(key, gitDir, listener)) {
+                    continue;
+                }
+                verified = verifySnapshot(scm, build, git, head, listener);
+                if (verified) {
+                    listener.getLogger().println(String.format(
+                            "Restored a snapshot of %s from %s",
+                            head.name(),
+                            backend.getDescriptor().getDisplayName()
+                    ));
+                    return true;
+                }
+                listener.getLogger().println(String.format(
+                        "Discarded a snapshot from %s failing verification",
+                        backend.getDescriptor().getDisplayName()
+                ));
+            } catch (IOException e) {
+                e.printStackTrace(listener.error(String.format(
+                        "Failed to restore a snapshot from %s",
+                        backend.getDescriptor().getDisplayName()
+                )));
+            } finally {
+                if (!verified) {
+                    gitDir.deleteRecursive();
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Verifies a snapshot restored from a backend.
+     * 
+     * Snapshots in backends can be saved by any node,
+     * and git doesn't hash objects in packs again when it reads them.
+     * <code>git fsck</code> hashes every object and checks they are reachable,
+     * and the tip must be the commit the remote advertised.
+     * 
+     * @return whether the snapshot can be used
+     */
+    private static boolean verifySnapshot(GitSCM scm, Run<?, ?> build, GitClient git, ObjectId head, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        GitCommandLauncher launcher = GitCommandLauncher.forBuild(scm, build, git, listener);
+        if (launcher.launch(listener.getLogger(), "fsck", "--no-dangling", "--no-progress") != 0) {
+            return false;
+        }
+        try {
+            return head.equals(git.revParse("HEAD"));
+        } catch (GitException e) {
+            return false;
+        }
+    }
+    
+    private static List<SnapshotCacheBackend> getSnapshotCacheBackends() {
+        SnapshotCacheConfiguration config = SnapshotCacheConfiguration.get();
+        return (config != null) ? config.getBackends() : Collections.<SnapshotCacheBackend>emptyList();
+    }
+    
+    private void saveSnapshot(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        String url = getRemoteUrl(scm, build, listener);
+        if (url == null) {
+            return;
+        }
+        ObjectId head = git.revParse("HEAD");
+        String key = WorkspaceSnapshotCache.getKey(url, head, getCheckoutDepth(scm, build, listener));
+        FilePath gitDir = git.getWorkTree().child(".git");
+        WorkspaceSnapshotCache cache = WorkspaceSnapshotCache.forCurrentNode(listener);
+        if (cache != null) {
+            cache.save(key, gitDir);
+        }
+        for (SnapshotCacheBackend backend: getSnapshotCacheBackends()) {
+            try {
+                backend.save(key, gitDir, listener);
+            } catch (IOException e) {
+                e.printStackTrace(listener.error(String.format(
+                        "Failed to save a snapshot to %s",
+                        backend.getDescriptor().getDisplayName()
+                )));
+            }
+        }
+    }
+    
     @Override
     public void decorateCloneCommand(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener, org.jenkinsci.plugins.gitclient.CloneCommand cmd)
             throws IOException, InterruptedException, GitException
     {
-        if (isDisableForMatrixParent() && isMatrixParent(build.getParent())) {
+        if (getCloneTimeout() != null && getCloneTimeout() > 0) {
+            cmd.timeout(getCloneTimeout());
+        }
+        if (!isShallowEnabled(build)) {
             return;
         }
-        listener.getLogger().println("Using shallow clone");
-        if (getDepth() != null) {
-            listener.getLogger().format("  with depth {0}", getDepth());
+        if (isJGit(scm, listener)) {
+            // JGit ignores shallow and depth silently.
+            listener.getLogger().println("JGit doesn't support shallow clone. Use command line git to enable shallow clone.");
+            return;
         }
+        int depth = getCheckoutDepth(scm, build, listener);
+        if (depth == 0) {
+            listener.getLogger().println("Shallow clone is disabled by the depth policy");
+            return;
+        }
+        listener.getLogger().println("Using shallow clone");
+        listener.getLogger().println(String.format("  with depth %d", depth));
         cmd.shallow();
-        cmd.depth(getDepth());
+        cmd.depth(depth);
+        if (isSingleFlight()) {
+            String url = getRemoteUrl(scm, build, listener);
+            String source = (url != null)
+                    ? SingleFlightClone.fetch(scm, build, git, url, depth, listener)
+                    : null;
+            if (source != null) {
+                listener.getLogger().println("Cloning from the shared repository on the node");
+                cmd.url(source);
+            }
+        }
+    }
+    
+    /**
+     * @param scm
+     * @param build
+     * @param listener
+     * @return the rule in {@link DepthPolicyConfiguration} applied to the build.
+     *     <code>null</code> if none.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @CheckForNull
+    private static DepthPolicyRule getPolicyRule(GitSCM scm, Run<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        DepthPolicyConfiguration policy = DepthPolicyConfiguration.get();
+        if (policy == null || policy.getRules().isEmpty()) {
+            return null;
+        }
+        EnvVars env = build.getEnvironment(listener);
+        String branch = env.get("BRANCH_NAME");
+        if (branch == null && !scm.getBranches().isEmpty()) {
+            branch = env.expand(scm.getBranches().get(0).getName());
+        }
+        URIish url = getRemoteURIish(scm, build, listener);
+        // never pass credentials in the URL to the policy.
+        return policy.resolve(build.getParent().getFullName(), branch, (url != null) ? url.toString() : null);
+    }
+    
+    /**
+     * @param scm
+     * @param build
+     * @param listener
+     * @return the URL of the first remote, with parameters expanded
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @CheckForNull
+    static String getRemoteUrl(@Nonnull GitSCM scm, @Nonnull Run<?, ?> build, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        URIish url = getRemoteURIish(scm, build, listener);
+        return (url != null) ? url.toPrivateString() : null;
+    }
+    
+    @CheckForNull
+    private static URIish getRemoteURIish(GitSCM scm, Run<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        List<RemoteConfig> repos = scm.getParamExpandedRepos(build, listener);
+        if (repos.isEmpty() || repos.get(0).getURIs().isEmpty()) {
+            return null;
+        }
+        return repos.get(0).getURIs().get(0);
+    }
+    
+    @Override
+    public void decorateFetchCommand(GitSCM scm, GitClient git, TaskListener listener, FetchCommand cmd)
+            throws IOException, InterruptedException, GitException
+    {
+        if (getCloneTimeout() != null && getCloneTimeout() > 0) {
+            cmd.timeout(getCloneTimeout());
+        }
+    }
+    
+    @Override
+    public void decorateCheckoutCommand(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener, CheckoutCommand cmd)
+            throws IOException, InterruptedException, GitException
+    {
+        boolean succeeded = false;
+        try {
+            if (isExactChangelog()) {
+                deepenForChangelog(scm, build, git, listener);
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                CloneWatchdog.stop(build);
+            }
+        }
+        // Only clones and fetches are watched.
+        CloneWatchdog.finish(build);
+        startPhase(build, "checkout");
+    }
+    
+    private void startPhase(Run<?, ?> build, String name) {
+        CloneTraceAction action = build.getAction(CloneTraceAction.class);
+        if (action != null && !action.isCompleted()) {
+            action.start(name);
+        }
+    }
+    
+    /**
+     * Deepens the shallow history before the changelog is computed.
+     * 
+     * The changelog is computed right after the checkout,
+     * and walks the history back to the previously built revision.
+     * That fails or walks to the shallow boundary
+     * when the previously built revision isn't fetched.
+     */
+    private void deepenForChangelog(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException, GitException
+    {
+        ObjectId previous = getPreviousBuiltRevision(scm, build);
+        if (previous == null || git.isCommitInRepo(previous)) {
+            return;
+        }
+        int deepenTo = getCheckoutDepth(scm, build, listener);
+        if (deepenTo == 0) {
+            // the full history.
+            return;
+        }
+        List<RemoteConfig> repos = scm.getParamExpandedRepos(build, listener);
+        while (!git.isCommitInRepo(previous)) {
+            if (deepenTo >= MAX_CHANGELOG_DEPTH) {
+                listener.getLogger().println(String.format(
+                        "%s is not found within depth %d. The changelog may be incomplete.",
+                        previous.name(),
+                        deepenTo
+                ));
+                return;
+            }
+            deepenTo = Math.min(deepenTo * 2, MAX_CHANGELOG_DEPTH);
+            listener.getLogger().println(String.format(
+                    "Deepening shallow clone to depth %d to find %s",
+                    deepenTo,
+                    previous.name()
+            ));
+            for (RemoteConfig rc: repos) {
+                if (rc.getURIs().isEmpty()) {
+                    continue;
+                }
+                FetchCommand fetch = git.fetch_()
+                    .from(rc.getURIs().get(0), rc.getFetchRefSpecs())
+                    .shallow(true)
+                    .depth(deepenTo);
+                decorateFetchCommand(scm, git, listener, fetch);
+                fetch.execute();
+            }
+        }
+    }
+    
+    @Override
+    public void onCheckoutCompleted(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException, GitException
+    {
+        CloneWatchdog.stop(build);
+        if (isSingleFlight()) {
+            // also required to resolve relative URLs of submodules.
+            SingleFlightClone.restoreRemoteUrl(scm, build, git, listener);
+        }
+        updateSubmodules(scm, build, git, listener);
+        if (isLfsPull()) {
+            startPhase(build, "LFS");
+            pullLfsObjects(scm, build, git, listener);
+        }
+        if (!isJGit(scm, listener)) {
+            recordWorkspaceDepth(scm, build, git, listener);
+        }
+        CheckoutState state = getCheckoutState(build);
+        // Workspaces fetched incrementally have more history than the depth.
+        if (isSnapshotCache() && getCheckoutDepth(scm, build, listener) != 0 && state.fresh && !state.restored) {
+            startPhase(build, "snapshot");
+            saveSnapshot(scm, build, git, listener);
+        }
+        state.completed = true;
+        completeTrace(build, listener);
+    }
+    
+    private void completeTrace(Run<?, ?> build, TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        CloneTraceAction action = build.getAction(CloneTraceAction.class);
+        if (action == null || action.isCompleted()) {
+            return;
+        }
+        action.complete();
+        if (build instanceof AbstractBuild && ((AbstractBuild<?, ?>) build).getWorkspace() != null) {
+            action.readTrace(CloneTraceAction.getTraceDir(((AbstractBuild<?, ?>) build).getWorkspace()));
+        }
+        action.print(listener);
+    }
+    
+    /**
+     * Updates submodules with the configured depth and parallel jobs.
+     * 
+     * Runs <code>git submodule update</code> by itself
+     * as {@link GitClient} supports neither depth nor jobs for submodules.
+     * Submodules are fetched with the credentials of the first remote.
+     */
+    private void updateSubmodules(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException, GitException
+    {
+        if (getSubmoduleDepth() == null && getSubmoduleJobs() == null) {
+            return;
+        }
+        if (!git.hasGitModules()) {
+            return;
+        }
+        startPhase(build, "submodules");
+        GitCommandLauncher launcher = GitCommandLauncher.forBuild(scm, build, git, listener)
+                .withCredentials(GitCredentialsEnvironment.lookup(scm, build));
+        List<String> args = new ArrayList<String>(Arrays.asList("submodule", "update", "--init", "--recursive"));
+        if (getSubmoduleJobs() != null && getSubmoduleJobs() > 0) {
+            args.add(String.format("--jobs=%d", getSubmoduleJobs()));
+        }
+        if (getSubmoduleDepth() != null && getSubmoduleDepth() > 0 && getCheckoutDepth(scm, build, listener) != 0) {
+            listener.getLogger().println(String.format("Updating submodules with depth %d", getSubmoduleDepth()));
+            List<String> shallowArgs = new ArrayList<String>(args);
+            shallowArgs.add(String.format("--depth=%d", getSubmoduleDepth()));
+            if (launcher.launch(listener.getLogger(), shallowArgs.toArray(new String[shallowArgs.size()])) == 0) {
+                return;
+            }
+            // The recorded commit of a submodule may be out of the depth
+            // from the tips of its remote.
+            listener.getLogger().println("Failed to update submodules with depth. Retrying without depth.");
+        } else {
+            listener.getLogger().println("Updating submodules");
+        }
+        launcher.run(args.toArray(new String[args.size()]));
+    }
+    
+    /**
+     * Pulls LFS objects skipped in checkout,
+     * only for the specified paths and in parallel.
+     * LFS objects are pulled with the credentials of the first remote.
+     */
+    private void pullLfsObjects(GitSCM scm, Run<?, ?> build, GitClient git, TaskListener listener)
+            throws IOException, InterruptedException, GitException
+    {
+        List<String> args = new ArrayList<String>();
+        if (getLfsConcurrentTransfers() != null && getLfsConcurrentTransfers() > 0) {
+            args.add("-c");
+            args.add(String.format("lfs.concurrenttransfers=%d", getLfsConcurrentTransfers()));
+        }
+        if (isLfsSharedStorage()) {
+            Node node = GitCommandLauncher.currentNode();
+            FilePath nodeRoot = (node != null) ? node.getRootPath() : null;
+            if (nodeRoot != null) {
+                FilePath storage = nodeRoot.child(LFS_STORAGE_DIR);
+                storage.mkdirs();
+                args.add("-c");
+                args.add(String.format("lfs.storage=%s", storage.getRemote()));
+            }
+        }
+        args.add("lfs");
+        args.add("pull");
+        if (getLfsInclude() != null) {
+            args.add(String.format("--include=%s", getLfsInclude()));
+        }
+        listener.getLogger().println("Pulling LFS objects");
+        GitCommandLauncher.forBuild(scm, build, git, listener)
+                .withCredentials(GitCredentialsEnvironment.lookup(scm, build))
+                .run(args.toArray(new String[args.size()]));
+    }
+    
+    @CheckForNull
+    private static ObjectId getPreviousBuiltRevision(@Nonnull GitSCM scm, @Nonnull Run<?, ?> build) {
+        Run<?, ?> previous = build.getPreviousBuild();
+        if (previous == null) {
+            return null;
+        }
+        BuildData data = scm.getBuildData(previous);
+        if (data == null) {
+            return null;
+        }
+        Revision rev = data.getLastBuiltRevision();
+        if (rev == null) {
+            return null;
+        }
+        return rev.getSha1();
     }
     
     private static boolean isMatrixParent(@Nonnull Job<?, ?> job) {
@@ -110,6 +1225,53 @@ public class ShallowDepthCloneOption extends GitSCMExtension {
             return Messages.ShallowDepthCloneOption_DisplayName();
         }
         
+        public ListBoxModel doFillNegotiationAlgorithmItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add(Messages.ShallowDepthCloneOption_NegotiationAlgorithm_Default(), "");
+            items.add(Messages.ShallowDepthCloneOption_NegotiationAlgorithm_Skipping(), "skipping");
+            items.add(Messages.ShallowDepthCloneOption_NegotiationAlgorithm_Consecutive(), "consecutive");
+            return items;
+        }
+        
+        public FormValidation doCheckCheckoutWorkers(@QueryParameter String value) {
+            return checkThreads(value);
+        }
+        
+        public FormValidation doCheckPackThreads(@QueryParameter String value) {
+            return checkThreads(value);
+        }
+        
+        private FormValidation checkThreads(String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null || AUTO.equals(value)) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value) > 0) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error(Messages.ShallowDepthCloneOption_InvalidThreads());
+        }
+        
+        public FormValidation doCheckCompressionLevel(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null) {
+                return FormValidation.ok();
+            }
+            try {
+                int level = Integer.parseInt(value);
+                if (-1 <= level && level <= 9) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error(Messages.ShallowDepthCloneOption_InvalidCompressionLevel());
+        }
+        
         public boolean isMatrixProject() {
             StaplerRequest req = Stapler.getCurrentRequest();
             if (req == null) {
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.slaves.WorkspaceList;
+
+/**
+ * Maintains repositories in workspaces cloned with {@link ShallowDepthCloneOption},
+ * so that fetches don't slow down as packs pile up.
+ * 
+ * Writes commit-graph files and a multi-pack-index and repacks incrementally
+ * with <code>git maintenance</code> (git 2.29 or later).
+ * Git doesn't use commit-graph files in shallow repositories,
+ * so those are written only for repositories with full history.
+ * Also prunes objects beyond the depth
+ * left when {@link ShallowDepthCloneOption} re-shallowed the workspace.
+ * 
+ * Applied only to jobs enabling {@link ShallowDepthCloneOption#isRepositoryMaintenance()}.
+ * Runs only on idle nodes, and stops before the next git command
+ * once a build starts on the node or the job is queued,
+ * so that the build isn't given another workspace to clone into.
+ */
+@Extension
+public class ShallowRepositoryMaintenance extends AsyncPeriodicWork {
+    public static long RECURRENCE_PERIOD = Long.getLong(
+            ShallowRepositoryMaintenance.class.getName() + ".recurrencePeriod",
+            TimeUnit.HOURS.toMillis(6)
+    );
+    
+    /**
+     * Milliseconds to spend in a cycle.
+     * Repositories not maintained in the budget are left to the next cycle.
+     */
+    public static long TIME_BUDGET = Long.getLong(
+            ShallowRepositoryMaintenance.class.getName() + ".timeBudget",
+            TimeUnit.MINUTES.toMillis(30)
+    );
+    
+    public ShallowRepositoryMaintenance() {
+        super("Maintain shallow repositories");
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIME_BUDGET;
+        for (ShallowWorkspace ws: ShallowWorkspace.findAll()) {
+            if (!ws.getOption().isRepositoryMaintenance()) {
+                continue;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                listener.getLogger().println("Time budget exhausted. Remaining repositories are maintained in the next cycle.");
+                return;
+            }
+            Computer c = ws.getNode().toComputer();
+            if (c == null || c.isOffline() || !c.isIdle()) {
+                continue;
+            }
+            // never run concurrently with clones in builds.
+            WorkspaceList.Lease lease = c.getWorkspaceList().tryAcquire(ws.getWorkspace());
+            if (lease == null) {
+                continue;
+            }
+            try {
+                FilePath gitDir = ws.getWorkspace().child(".git");
+                if (!gitDir.exists()) {
+                    continue;
+                }
+                listener.getLogger().println(String.format(
+                        "Maintaining %s on %s",
+                        ws.getWorkspace().getRemote(),
+                        ws.getNode().getDisplayName()
+                ));
+                List<String> args = new ArrayList<String>(Arrays.asList(
+                        "maintenance", "run",
+                        "--task=loose-objects",
+                        "--task=incremental-repack"
+                ));
+                if (!gitDir.child("shallow").exists()) {
+                    args.add("--task=commit-graph");
+                }
+                GitCommandLauncher launcher = GitCommandLauncher.forNode(ws.getScm(), ws.getNode(), ws.getWorkspace(), listener)
+                    .withLowPriority();
+                List<String[]> commands = new ArrayList<String[]>();
+                if (launcher.launch(new ByteArrayOutputStream(), "config", "--get", ShallowDepthCloneOption.WORKSPACE_PRUNE_KEY) == 0) {
+                    listener.getLogger().println("Pruning objects beyond the depth");
+                    commands.addAll(Arrays.asList(ShallowDepthCloneOption.PRUNE_COMMANDS));
+                    commands.add(new String[]{"config", "--unset", ShallowDepthCloneOption.WORKSPACE_PRUNE_KEY});
+                }
+                commands.add(args.toArray(new String[args.size()]));
+                for (String[] command: commands) {
+                    if (System.currentTimeMillis() > deadline) {
+                        listener.getLogger().println("Time budget exhausted. Remaining repositories are maintained in the next cycle.");
+                        return;
+                    }
+                    if (!c.isIdle() || ws.getBuild().getParent().isInQueue()) {
+                        listener.getLogger().println("A build is coming to the node. The workspace is maintained in the next cycle.");
+                        break;
+                    }
+                    launcher.run(command);
+                }
+            } catch (GitException e) {
+                listener.error(String.format("Failed to maintain %s", ws.getWorkspace().getRemote()));
+                e.printStackTrace(listener.getLogger());
+            } finally {
+                lease.release();
+            }
+        }
+    }
+}
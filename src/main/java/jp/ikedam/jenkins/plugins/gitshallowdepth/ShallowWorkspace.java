@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.plugins.git.GitSCM;
+import hudson.scm.SCM;
+import jenkins.model.Jenkins;
+
+/**
+ * A workspace on a node cloned with {@link ShallowDepthCloneOption}.
+ */
+class ShallowWorkspace {
+    /**
+     * The number of recent builds to look for nodes a job is likely to run on.
+     */
+    public static int RECENT_BUILDS = Integer.getInteger(ShallowWorkspace.class.getName() + ".recentBuilds", 3);
+    
+    private final AbstractBuild<?, ?> build;
+    private final GitSCM scm;
+    private final ShallowDepthCloneOption option;
+    private final Node node;
+    private final FilePath workspace;
+    
+    private ShallowWorkspace(AbstractBuild<?, ?> build, GitSCM scm, ShallowDepthCloneOption option, Node node, FilePath workspace) {
+        this.build = build;
+        this.scm = scm;
+        this.option = option;
+        this.node = node;
+        this.workspace = workspace;
+    }
+    
+    /**
+     * @return the last build used this workspace
+     */
+    @Nonnull
+    public AbstractBuild<?, ?> getBuild() {
+        return build;
+    }
+    
+    @Nonnull
+    public GitSCM getScm() {
+        return scm;
+    }
+    
+    @Nonnull
+    public ShallowDepthCloneOption getOption() {
+        return option;
+    }
+    
+    @Nonnull
+    public Node getNode() {
+        return node;
+    }
+    
+    @Nonnull
+    public FilePath getWorkspace() {
+        return workspace;
+    }
+    
+    /**
+     * Lists workspaces of jobs using {@link ShallowDepthCloneOption}
+     * on nodes recent builds ran on.
+     * 
+     * @return workspaces available now
+     */
+    @Nonnull
+    public static List<ShallowWorkspace> findAll() {
+        List<ShallowWorkspace> ret = new ArrayList<ShallowWorkspace>();
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return ret;
+        }
+        for (AbstractProject<?, ?> p: jenkins.getAllItems(AbstractProject.class)) {
+            if (p.isDisabled()) {
+                continue;
+            }
+            SCM scm = p.getScm();
+            if (!(scm instanceof GitSCM)) {
+                continue;
+            }
+            GitSCM gitScm = (GitSCM) scm;
+            ShallowDepthCloneOption option = gitScm.getExtensions().get(ShallowDepthCloneOption.class);
+            if (option == null) {
+                continue;
+            }
+            Set<String> visited = new HashSet<String>();
+            int count = 0;
+            for (
+                    AbstractBuild<?, ?> b = p.getLastBuild();
+                    b != null && count < RECENT_BUILDS;
+                    b = b.getPreviousBuild(), ++count
+            ) {
+                if (b.isBuilding()) {
+                    continue;
+                }
+                Node node = b.getBuiltOn();
+                if (node == null) {
+                    continue;
+                }
+                FilePath workspace = b.getWorkspace();
+                if (workspace == null) {
+                    continue;
+                }
+                if (!visited.add(node.getNodeName() + ":" + workspace.getRemote())) {
+                    continue;
+                }
+                ret.add(new ShallowWorkspace(b, gitScm, option, node, workspace));
+            }
+        }
+        return ret;
+    }
+}
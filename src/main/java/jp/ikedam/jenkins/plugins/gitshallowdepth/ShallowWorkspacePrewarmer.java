@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.slaves.WorkspaceList;
+
+/**
+ * Fetches the current shallow tips into workspaces on idle nodes,
+ * so that the next build fetches only a small delta.
+ * 
+ * The fetch runs in a temporary repository next to the workspace,
+ * borrowing objects of the workspace with <code>objects/info/alternates</code>.
+ * The workspace is leased only to move the fetched pack, refs and <code>shallow</code> into it,
+ * so that a build starting meanwhile isn't given another workspace to clone into.
+ * 
+ * Applied only to jobs enabling {@link ShallowDepthCloneOption#isPrewarm()}.
+ */
+@Extension
+public class ShallowWorkspacePrewarmer extends AsyncPeriodicWork {
+    public static long RECURRENCE_PERIOD = Long.getLong(
+            ShallowWorkspacePrewarmer.class.getName() + ".recurrencePeriod",
+            TimeUnit.HOURS.toMillis(1)
+    );
+    
+    private static final String TMP_REPOSITORY = "prewarm.git";
+    
+    public ShallowWorkspacePrewarmer() {
+        super("Prewarm shallow workspaces");
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (ShallowWorkspace ws: ShallowWorkspace.findAll()) {
+            if (!ws.getOption().isPrewarm()) {
+                continue;
+            }
+            Computer c = ws.getNode().toComputer();
+            if (c == null || c.isOffline() || !c.isIdle()) {
+                continue;
+            }
+            try {
+                prewarm(ws, c, listener);
+            } catch (GitException e) {
+                listener.error(String.format("Failed to prewarm %s", ws.getWorkspace().getRemote()));
+                e.printStackTrace(listener.getLogger());
+            }
+        }
+    }
+    
+    private void prewarm(ShallowWorkspace ws, Computer c, TaskListener listener)
+            throws IOException, InterruptedException, GitException
+    {
+        FilePath workspace = ws.getWorkspace();
+        FilePath gitDir = workspace.child(".git");
+        if (!gitDir.isDirectory()) {
+            return;
+        }
+        // also honors the depth policy, and skips workspaces with the full history.
+        int depth = ws.getOption().getConfiguredDepth(ws.getScm(), ws.getBuild(), listener);
+        if (depth == 0) {
+            return;
+        }
+        GitCommandLauncher launcher = GitCommandLauncher.forNode(ws.getScm(), ws.getNode(), workspace, listener)
+                .withCredentials(GitCredentialsEnvironment.lookup(ws.getScm(), ws.getBuild()));
+        // read without the lease. Compared again when moved into the workspace.
+        String shallow = readShallow(gitDir);
+        Map<String, String> refs = listRefs(launcher, gitDir);
+        
+        listener.getLogger().println(String.format(
+                "Prewarming %s on %s",
+                workspace.getRemote(),
+                ws.getNode().getDisplayName()
+        ));
+        FilePath tmp = GitCommandLauncher.getTmpDir(workspace).child(TMP_REPOSITORY);
+        tmp.deleteRecursive();
+        try {
+            launcher.run("init", "--bare", "--quiet", tmp.getRemote());
+            tmp.child("objects/info/alternates").write(gitDir.child("objects").getRemote() + "\n", "UTF-8");
+            if (shallow != null) {
+                tmp.child("shallow").write(shallow, "UTF-8");
+            }
+            String tmpGitDir = "--git-dir=" + tmp.getRemote();
+            // the refs of the workspace are sent as haves, so that only the delta is fetched.
+            for (Map.Entry<String, String> ref: refs.entrySet()) {
+                launcher.run(tmpGitDir, "update-ref", ref.getKey(), ref.getValue());
+            }
+            for (RemoteConfig rc: ws.getScm().getParamExpandedRepos(ws.getBuild(), listener)) {
+                if (rc.getURIs().isEmpty()) {
+                    continue;
+                }
+                List<String> args = new ArrayList<String>();
+                args.add(tmpGitDir);
+                // keeps a pack to move it instead of loose objects.
+                args.add("-c");
+                args.add("fetch.unpackLimit=1");
+                args.add("fetch");
+                args.add(String.format("--depth=%d", depth));
+                args.add(rc.getURIs().get(0).toString());
+                for (RefSpec refSpec: rc.getFetchRefSpecs()) {
+                    args.add(refSpec.toString());
+                }
+                launcher.run(args.toArray(new String[args.size()]));
+            }
+            
+            WorkspaceList.Lease lease = c.getWorkspaceList().tryAcquire(workspace);
+            if (lease == null) {
+                listener.getLogger().println("The workspace is in use. Discarding the prewarmed objects.");
+                return;
+            }
+            try {
+                if (!equals(shallow, readShallow(gitDir)) || !refs.equals(listRefs(launcher, gitDir))) {
+                    listener.getLogger().println("The workspace is updated. Discarding the prewarmed objects.");
+                    return;
+                }
+                moveInto(tmp, gitDir, launcher, refs);
+            } finally {
+                lease.release();
+            }
+        } finally {
+            tmp.deleteRecursive();
+        }
+    }
+    
+    private static void moveInto(FilePath tmp, FilePath gitDir, GitCommandLauncher launcher, Map<String, String> refs)
+            throws IOException, InterruptedException, GitException
+    {
+        FilePath packDir = gitDir.child("objects/pack");
+        // indexes after packs, so that git never sees an index without its pack.
+        for (String suffix: new String[]{".pack", ".idx"}) {
+            for (FilePath f: tmp.child("objects/pack").list("*" + suffix)) {
+                f.copyTo(packDir.child(f.getName()));
+            }
+        }
+        String shallow = readShallow(tmp);
+        if (shallow != null) {
+            gitDir.child("shallow").write(shallow, "UTF-8");
+        }
+        for (Map.Entry<String, String> ref: listRefs(launcher, tmp).entrySet()) {
+            if (!ref.getValue().equals(refs.get(ref.getKey()))) {
+                launcher.run("update-ref", ref.getKey(), ref.getValue());
+            }
+        }
+    }
+    
+    private static String readShallow(FilePath gitDir) throws IOException, InterruptedException {
+        FilePath shallow = gitDir.child("shallow");
+        return shallow.exists() ? shallow.readToString() : null;
+    }
+    
+    private static Map<String, String> listRefs(GitCommandLauncher launcher, FilePath gitDir)
+            throws IOException, InterruptedException, GitException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String[] args = {"--git-dir=" + gitDir.getRemote(), "for-each-ref", "--format=%(refname) %(objectname)"};
+        if (launcher.launch(out, args) != 0) {
+            throw new GitException(String.format("Failed to list refs in %s", gitDir.getRemote()));
+        }
+        Map<String, String> refs = new HashMap<String, String>();
+        for (String line: out.toString("UTF-8").split("\n")) {
+            int pos = line.indexOf(' ');
+            if (pos > 0) {
+                refs.put(line.substring(0, pos), line.substring(pos + 1).trim());
+            }
+        }
+        return refs;
+    }
+    
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
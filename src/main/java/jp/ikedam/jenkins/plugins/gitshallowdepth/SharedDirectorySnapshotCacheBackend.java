@@ -0,0 +1,207 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FormValidation;
+
+/**
+ * Stores snapshots in a directory shared by nodes (e.g. mounted with NFS).
+ * 
+ * Archives are written and extracted on the node,
+ * and don't go through the controller.
+ */
+public class SharedDirectorySnapshotCacheBackend extends SnapshotCacheBackend {
+    private final String path;
+    private Integer budget;
+    
+    @DataBoundConstructor
+    public SharedDirectorySnapshotCacheBackend(String path) {
+        this.path = Util.fixEmptyAndTrim(path);
+    }
+    
+    /**
+     * @return the path of the shared directory on nodes
+     */
+    public String getPath() {
+        return path;
+    }
+    
+    @DataBoundSetter
+    public void setBudget(Integer budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * @return disk budget for snapshots in MiB. <code>null</code> for 10 GiB.
+     * @see SnapshotCacheBackend#DEFAULT_BUDGET
+     */
+    @CheckForNull
+    public Integer getBudget() {
+        return budget;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean restore(@Nonnull String key, @Nonnull FilePath gitDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        if (getPath() == null) {
+            return false;
+        }
+        return gitDir.act(new RestoreCallable(new File(getPath(), key + ARCHIVE_SUFFIX).getPath()));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void save(@Nonnull String key, @Nonnull FilePath gitDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        if (getPath() == null) {
+            return;
+        }
+        gitDir.act(new SaveCallable(getPath(), key + ARCHIVE_SUFFIX, toBudgetBytes(getBudget())));
+    }
+    
+    private static class RestoreCallable implements FilePath.FileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+        
+        private final String archive;
+        
+        public RestoreCallable(String archive) {
+            this.archive = archive;
+        }
+        
+        @Override
+        public Boolean invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            File archiveFile = new File(archive);
+            if (!archiveFile.isFile()) {
+                return false;
+            }
+            FilePath gitDir = new FilePath(f);
+            boolean restored = false;
+            InputStream in = new FileInputStream(archiveFile);
+            try {
+                gitDir.untarFrom(in, FilePath.TarCompression.GZIP);
+                completeRestored(gitDir);
+                restored = true;
+            } finally {
+                IOUtils.closeQuietly(in);
+                if (!restored) {
+                    // a partially extracted .git would be taken as a repository.
+                    gitDir.deleteRecursive();
+                }
+            }
+            // for least recently used eviction.
+            archiveFile.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+    }
+    
+    private static class SaveCallable implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        
+        private final String dir;
+        private final String name;
+        private final long budget;
+        
+        public SaveCallable(String dir, String name, long budget) {
+            this.dir = dir;
+            this.name = name;
+            this.budget = budget;
+        }
+        
+        @Override
+        public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            File dirFile = new File(dir);
+            File archiveFile = new File(dirFile, name);
+            if (archiveFile.exists()) {
+                return null;
+            }
+            if (!dirFile.isDirectory() && !dirFile.mkdirs()) {
+                throw new IOException(String.format("Failed to create %s", dirFile));
+            }
+            // other nodes may save the same snapshot at the same time.
+            File tmp = File.createTempFile(name, ".tmp", dirFile);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp));
+                try {
+                    new FilePath(f).tar(out, getSnapshotScanner());
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(archiveFile) && !archiveFile.exists()) {
+                    throw new IOException(String.format("Failed to rename %s to %s", tmp, archiveFile));
+                }
+            } finally {
+                if (tmp.exists()) {
+                    tmp.delete();
+                }
+            }
+            evict(dirFile, budget);
+            return null;
+        }
+    }
+    
+    @Extension
+    public static class DescriptorImpl extends Descriptor<SnapshotCacheBackend> {
+        @Override
+        public String getDisplayName() {
+            return Messages.SharedDirectorySnapshotCacheBackend_DisplayName();
+        }
+        
+        public FormValidation doCheckPath(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error(Messages.SharedDirectorySnapshotCacheBackend_PathRequired());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
+
+/**
+ * Fetches a remote only once for concurrent clones on the same node.
+ * 
+ * The first clone fetches into a repository shared on the node,
+ * keyed by the remote URL and the depth,
+ * and following clones of the same commit wait for it
+ * and clone objects from the shared repository.
+ * The git plugin still contacts the remote to resolve the commit to build
+ * and fetches from it after the clone,
+ * but those transfer only refs and objects missing in the shared repository.
+ * 
+ * Shared repositories not used for {@link #MAX_IDLE} are removed.
+ */
+class SingleFlightClone {
+    private static final String MIRROR_DIR = "caches/git-shallow-depth/mirrors";
+    
+    /**
+     * Milliseconds to keep shared repositories not used.
+     */
+    public static long MAX_IDLE = Long.getLong(
+            SingleFlightClone.class.getName() + ".maxIdle",
+            TimeUnit.DAYS.toMillis(1)
+    );
+    
+    /**
+     * Locks for each shared repository in use.
+     * Keyed by the node name and the path of the repository.
+     * Removed when no one uses it.
+     */
+    private static final Map<String, MirrorLock> LOCKS = new HashMap<String, MirrorLock>();
+    
+    private static class MirrorLock {
+        /**
+         * Number of threads holding or waiting the lock.
+         * Guarded by {@link SingleFlightClone#LOCKS}.
+         */
+        public int users;
+    }
+    
+    private SingleFlightClone() {
+    }
+    
+    @Nonnull
+    private static MirrorLock acquire(@Nonnull String key) {
+        synchronized (LOCKS) {
+            MirrorLock lock = LOCKS.get(key);
+            if (lock == null) {
+                lock = new MirrorLock();
+                LOCKS.put(key, lock);
+            }
+            ++lock.users;
+            return lock;
+        }
+    }
+    
+    private static void release(@Nonnull String key, @Nonnull MirrorLock lock) {
+        synchronized (LOCKS) {
+            if (--lock.users <= 0) {
+                LOCKS.remove(key);
+            }
+        }
+    }
+    
+    @Nonnull
+    private static String getLockKey(@Nonnull Node node, @Nonnull FilePath mirror) {
+        return String.format("%s\n%s", node.getNodeName(), mirror.getRemote());
+    }
+    
+    /**
+     * Fetches the commit to build into the shared repository
+     * unless it's already fetched.
+     * 
+     * @param scm
+     * @param build
+     * @param git
+     * @param url
+     * @param depth
+     * @param listener
+     * @return the URL of the shared repository to clone from.
+     *     <code>null</code> if not available.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @CheckForNull
+    public static String fetch(
+            @Nonnull GitSCM scm,
+            @Nonnull Run<?, ?> build,
+            @Nonnull GitClient git,
+            @Nonnull String url,
+            int depth,
+            @Nonnull TaskListener listener
+    ) throws IOException, InterruptedException {
+        Node node = GitCommandLauncher.currentNode();
+        FilePath nodeRoot = (node != null) ? node.getRootPath() : null;
+        if (nodeRoot == null) {
+            return null;
+        }
+        ObjectId head = WorkspaceSnapshotCache.getRemoteHead(scm, build, git, url, listener);
+        if (head == null) {
+            return null;
+        }
+        List<RemoteConfig> repos = scm.getParamExpandedRepos(build, listener);
+        if (repos.isEmpty() || repos.get(0).getURIs().isEmpty()) {
+            return null;
+        }
+        RemoteConfig rc = repos.get(0);
+        FilePath mirror = nodeRoot.child(MIRROR_DIR).child(Util.getDigestOf(String.format("%s\n%d", url, depth)));
+        String lockKey = getLockKey(node, mirror);
+        MirrorLock lock = acquire(lockKey);
+        try {
+            synchronized (lock) {
+                if (!fetchInto(scm, build, mirror, rc, head, depth, listener)) {
+                    return null;
+                }
+                // marks the shared repository used.
+                mirror.touch(System.currentTimeMillis());
+            }
+        } finally {
+            release(lockKey, lock);
+        }
+        evictIdleMirrors(node, nodeRoot.child(MIRROR_DIR), listener);
+        return toFileUrl(mirror.getRemote());
+    }
+    
+    /**
+     * @return <code>false</code> if failed to fetch
+     */
+    private static boolean fetchInto(
+            GitSCM scm,
+            Run<?, ?> build,
+            FilePath mirror,
+            RemoteConfig rc,
+            ObjectId head,
+            int depth,
+            TaskListener listener
+    ) throws IOException, InterruptedException {
+        GitClient mirrorGit = scm.createClient(listener, build.getEnvironment(listener), build, mirror);
+        // bare repositories don't have .git.
+        boolean exists = mirror.child("HEAD").exists();
+        if (exists && mirrorGit.isCommitInRepo(head)) {
+            listener.getLogger().println(String.format(
+                    "%s is already fetched into the shared repository on the node",
+                    head.name()
+            ));
+        } else {
+            listener.getLogger().println(String.format(
+                    "Fetching %s into the shared repository on the node",
+                    head.name()
+            ));
+            try {
+                if (!exists) {
+                    mirror.mkdirs();
+                    mirrorGit.init_().workspace(mirror.getRemote()).bare(true).execute();
+                }
+                // keep refs as they are in the remote,
+                // so that refspecs of the job apply to clones from the shared repository.
+                List<RefSpec> refspecs = new ArrayList<RefSpec>();
+                for (RefSpec refspec: rc.getFetchRefSpecs()) {
+                    refspecs.add(new RefSpec(String.format("+%s:%s", refspec.getSource(), refspec.getSource())));
+                }
+                mirrorGit.fetch_()
+                    .from(rc.getURIs().get(0), refspecs)
+                    .shallow(true)
+                    .depth(depth)
+                    .execute();
+                // shallow fetches pile up packs.
+                GitCommandLauncher.forBuild(scm, build, mirrorGit, listener).run("gc", "--auto");
+            } catch (GitException e) {
+                e.printStackTrace(listener.error("Failed to fetch into the shared repository"));
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Removes shared repositories not used for {@link #MAX_IDLE}.
+     */
+    private static void evictIdleMirrors(
+            @Nonnull Node node,
+            @Nonnull FilePath mirrors,
+            @Nonnull TaskListener listener
+    ) throws IOException, InterruptedException {
+        for (String name: mirrors.act(new ListIdleCallable(MAX_IDLE))) {
+            FilePath mirror = mirrors.child(name);
+            String lockKey = getLockKey(node, mirror);
+            MirrorLock lock = acquire(lockKey);
+            try {
+                synchronized (lock) {
+                    // may be used while waiting for the lock.
+                    if (mirror.exists() && mirror.lastModified() < System.currentTimeMillis() - MAX_IDLE) {
+                        listener.getLogger().println(String.format("Removing an idle shared repository %s", mirror.getRemote()));
+                        mirror.deleteRecursive();
+                    }
+                }
+            } finally {
+                release(lockKey, lock);
+            }
+        }
+    }
+    
+    /**
+     * Lists shared repositories not used for a period.
+     */
+    private static class ListIdleCallable implements FilePath.FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final long maxIdle;
+        
+        public ListIdleCallable(long maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+        
+        @Override
+        public List<String> invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            List<String> names = new ArrayList<String>();
+            File[] children = f.listFiles();
+            if (children == null) {
+                return names;
+            }
+            long since = System.currentTimeMillis() - maxIdle;
+            for (File child: children) {
+                if (child.isDirectory() && child.lastModified() < since) {
+                    names.add(child.getName());
+                }
+            }
+            return names;
+        }
+    }
+    
+    /**
+     * Points the remote back to the original URL after cloning from the shared repository.
+     * Also called before checkouts to restore workspaces left
+     * by checkouts failed after cloning from the shared repository.
+     * 
+     * @param scm
+     * @param build
+     * @param git
+     * @param listener
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void restoreRemoteUrl(
+            @Nonnull GitSCM scm,
+            @Nonnull Run<?, ?> build,
+            @Nonnull GitClient git,
+            @Nonnull TaskListener listener
+    ) throws IOException, InterruptedException {
+        List<RemoteConfig> repos = scm.getParamExpandedRepos(build, listener);
+        if (repos.isEmpty() || repos.get(0).getURIs().isEmpty()) {
+            return;
+        }
+        RemoteConfig rc = repos.get(0);
+        String url = rc.getURIs().get(0).toPrivateString();
+        if (!url.equals(git.getRemoteUrl(rc.getName()))) {
+            git.setRemoteUrl(rc.getName(), url);
+        }
+    }
+    
+    /**
+     * git ignores depth for local paths. Use file:// instead.
+     */
+    private static String toFileUrl(String path) {
+        path = path.replace('\\', '/');
+        return path.startsWith("/") ? "file://" + path : "file:///" + path;
+    }
+}
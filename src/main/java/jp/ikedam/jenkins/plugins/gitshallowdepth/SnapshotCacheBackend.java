@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.ExtensionPoint;
+import hudson.FilePath;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.TaskListener;
+import hudson.util.DirScanner;
+
+/**
+ * Stores snapshots of <code>.git</code> of shallow workspaces outside of nodes,
+ * so that agents provisioned for each build can restore them.
+ * 
+ * Snapshots are keyed with {@link WorkspaceSnapshotCache#getKey(String, org.eclipse.jgit.lib.ObjectId, int)}.
+ * Backends are configured in {@link SnapshotCacheConfiguration}.
+ */
+public abstract class SnapshotCacheBackend extends AbstractDescribableImpl<SnapshotCacheBackend> implements ExtensionPoint {
+    /**
+     * The suffix of archives of snapshots.
+     */
+    protected static final String ARCHIVE_SUFFIX = ".tar.gz";
+    
+    /**
+     * Disk budget for snapshots in MiB used when not configured.
+     */
+    protected static final int DEFAULT_BUDGET = 10240;
+    
+    /**
+     * Files in <code>.git</code> saved in snapshots.
+     * 
+     * <code>config</code> and <code>hooks</code> are never saved,
+     * as they are restored into workspaces of other jobs
+     * and could run commands there.
+     */
+    private static final String SNAPSHOT_INCLUDES = "HEAD,shallow,packed-refs,refs/**,objects/**";
+    
+    /**
+     * Files in <code>objects</code> not to refer to repositories out of the snapshot.
+     */
+    private static final String SNAPSHOT_EXCLUDES = "objects/info/alternates";
+    
+    /**
+     * <code>config</code> written into restored <code>.git</code>.
+     */
+    private static final String RESTORED_CONFIG = "[core]\n"
+            + "\trepositoryformatversion = 0\n"
+            + "\tbare = false\n";
+    
+    /**
+     * Restores a snapshot into the workspace without <code>.git</code>.
+     * 
+     * The restored snapshot is verified by the caller,
+     * as it may be saved by any node.
+     * 
+     * @param key
+     * @param gitDir <code>.git</code> of the workspace
+     * @param listener
+     * @return whether a snapshot is restored
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public abstract boolean restore(@Nonnull String key, @Nonnull FilePath gitDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException;
+    
+    /**
+     * Saves <code>.git</code> of the workspace unless the snapshot for the key exists.
+     * 
+     * @param key
+     * @param gitDir <code>.git</code> of the workspace
+     * @param listener
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public abstract void save(@Nonnull String key, @Nonnull FilePath gitDir, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException;
+    
+    /**
+     * @return the scanner for files in <code>.git</code> to save in snapshots
+     */
+    @Nonnull
+    protected static DirScanner getSnapshotScanner() {
+        return new DirScanner.Glob(SNAPSHOT_INCLUDES, SNAPSHOT_EXCLUDES);
+    }
+    
+    /**
+     * Completes <code>.git</code> extracted from a snapshot
+     * with files not saved in snapshots.
+     * 
+     * Empty directories are not saved, and git requires <code>refs</code> and <code>objects</code>.
+     * <code>config</code> is always rewritten and <code>hooks</code> are removed
+     * as snapshots saved before may contain them.
+     * 
+     * @param gitDir
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected static void completeRestored(@Nonnull FilePath gitDir) throws IOException, InterruptedException {
+        gitDir.child("refs").mkdirs();
+        gitDir.child("objects").mkdirs();
+        gitDir.child("config").write(RESTORED_CONFIG, "UTF-8");
+        gitDir.child("hooks").deleteRecursive();
+    }
+    
+    /**
+     * @param budget disk budget in MiB. <code>null</code> for the default.
+     * @return disk budget in bytes
+     */
+    protected static long toBudgetBytes(@CheckForNull Integer budget) {
+        return ((budget != null && budget > 0) ? budget : DEFAULT_BUDGET) * 1024L * 1024L;
+    }
+    
+    /**
+     * Removes least recently used archives in the directory exceeding the budget.
+     * 
+     * @param dir
+     * @param budget bytes
+     */
+    protected static void evict(@Nonnull File dir, long budget) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> archives = new ArrayList<File>();
+        long total = 0;
+        for (File f: files) {
+            if (f.isFile() && f.getName().endsWith(ARCHIVE_SUFFIX)) {
+                archives.add(f);
+                total += f.length();
+            }
+        }
+        Collections.sort(archives, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long l1 = o1.lastModified();
+                long l2 = o2.lastModified();
+                return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+            }
+        });
+        for (File f: archives) {
+            if (total <= budget) {
+                break;
+            }
+            long size = f.length();
+            if (f.delete()) {
+                total -= size;
+            }
+        }
+    }
+}
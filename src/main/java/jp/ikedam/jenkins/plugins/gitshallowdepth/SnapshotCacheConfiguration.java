@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.model.Descriptor.FormException;
+import jenkins.model.GlobalConfiguration;
+
+/**
+ * Backends storing snapshots of workspaces
+ * for {@link ShallowDepthCloneOption#isSnapshotCache()}
+ * in addition to the cache on each node.
+ * 
+ * Snapshots are restored from the first backend having them,
+ * and saved to all backends.
+ */
+@Extension
+public class SnapshotCacheConfiguration extends GlobalConfiguration {
+    private List<SnapshotCacheBackend> backends = Collections.emptyList();
+    
+    public SnapshotCacheConfiguration() {
+        load();
+    }
+    
+    /**
+     * @return the instance. <code>null</code> if Jenkins isn't running.
+     */
+    @CheckForNull
+    public static SnapshotCacheConfiguration get() {
+        return GlobalConfiguration.all().get(SnapshotCacheConfiguration.class);
+    }
+    
+    @Nonnull
+    public List<SnapshotCacheBackend> getBackends() {
+        return backends;
+    }
+    
+    public void setBackends(List<SnapshotCacheBackend> backends) {
+        this.backends = (backends != null)
+                ? Collections.unmodifiableList(new ArrayList<SnapshotCacheBackend>(backends))
+                : Collections.<SnapshotCacheBackend>emptyList();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        // clear backends not to be left when all backends are removed.
+        setBackends(null);
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+    
+    protected Object readResolve() {
+        if (backends == null) {
+            backends = Collections.emptyList();
+        }
+        return this;
+    }
+}
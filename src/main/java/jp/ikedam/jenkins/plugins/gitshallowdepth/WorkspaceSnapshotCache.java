@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.GitClient;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.os.PosixAPI;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FileVisitor;
+
+/**
+ * Node-local cache of <code>.git</code> of shallow workspaces,
+ * keyed by the remote URL, the commit and the depth.
+ * 
+ * Objects are restored with hard links where possible.
+ * Git never modifies object files in place, so they are safely shared.
+ * Like {@link SnapshotCacheBackend}, only refs and objects are saved,
+ * and <code>config</code> and <code>hooks</code> are never restored into other jobs.
+ * 
+ * The size of each snapshot is recorded next to it when it is saved,
+ * so that snapshots aren't walked on every save.
+ */
+class WorkspaceSnapshotCache {
+    /**
+     * Disk budget for snapshots on each node in MiB.
+     * Least recently used snapshots are removed when exceeded.
+     */
+    public static long BUDGET = Long.getLong(WorkspaceSnapshotCache.class.getName() + ".budget", 10240L);
+    
+    private static final String CACHE_DIR = "caches/git-shallow-depth/snapshots";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String SIZE_SUFFIX = ".size";
+    
+    private final FilePath root;
+    private final TaskListener listener;
+    
+    private WorkspaceSnapshotCache(FilePath root, TaskListener listener) {
+        this.root = root;
+        this.listener = listener;
+    }
+    
+    /**
+     * @param listener
+     * @return the cache on the node the current executor runs on.
+     *     <code>null</code> if not available.
+     */
+    @CheckForNull
+    public static WorkspaceSnapshotCache forCurrentNode(@Nonnull TaskListener listener) {
+        Node node = GitCommandLauncher.currentNode();
+        if (node == null) {
+            return null;
+        }
+        FilePath nodeRoot = node.getRootPath();
+        if (nodeRoot == null) {
+            return null;
+        }
+        return new WorkspaceSnapshotCache(nodeRoot.child(CACHE_DIR), listener);
+    }
+    
+    /**
+     * @param url
+     * @param sha1
+     * @param depth the depth resolved for the build
+     * @return the key for the snapshot
+     */
+    @Nonnull
+    public static String getKey(@Nonnull String url, @Nonnull ObjectId sha1, int depth) {
+        return Util.getDigestOf(String.format("%s\n%s\n%d", url, sha1.name(), depth));
+    }
+    
+    /**
+     * Resolves the commit to build without fetching.
+     * 
+     * @param scm
+     * @param build
+     * @param git
+     * @param url
+     * @param listener
+     * @return the commit at the tip of the first branch.
+     *     <code>null</code> if not resolved.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @CheckForNull
+    public static ObjectId getRemoteHead(@Nonnull GitSCM scm, @Nonnull Run<?, ?> build, @Nonnull GitClient git, @Nonnull String url, @Nonnull TaskListener listener)
+            throws IOException, InterruptedException
+    {
+        List<BranchSpec> branches = scm.getBranches();
+        if (branches.size() != 1) {
+            return null;
+        }
+        String branch = build.getEnvironment(listener).expand(branches.get(0).getName());
+        // git-client resolves */BRANCH to the branch of any remote.
+        if ((branch.startsWith("*/") ? branch.substring(2) : branch).contains("*")) {
+            // wildcards are resolved only by fetching.
+            return null;
+        }
+        try {
+            return git.getHeadRev(url, branch);
+        } catch (GitException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Restores a snapshot into the workspace without <code>.git</code>.
+     * 
+     * @param key
+     * @param gitDir <code>.git</code> of the workspace
+     * @return whether a snapshot is restored
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean restore(@Nonnull String key, @Nonnull FilePath gitDir) throws IOException, InterruptedException {
+        FilePath snapshot = root.child(key);
+        if (!snapshot.isDirectory() || gitDir.exists()) {
+            return false;
+        }
+        boolean restored = false;
+        try {
+            snapshot.act(new LinkCopyCallable(gitDir.getRemote()));
+            SnapshotCacheBackend.completeRestored(gitDir);
+            restored = true;
+        } catch (IOException e) {
+            // may be evicted just now.
+            listener.getLogger().println(String.format("Failed to restore a snapshot: %s", e.getMessage()));
+            return false;
+        } finally {
+            if (!restored) {
+                // a partially copied .git would be taken as a repository.
+                gitDir.deleteRecursive();
+            }
+        }
+        snapshot.touch(System.currentTimeMillis());
+        return true;
+    }
+    
+    /**
+     * Saves <code>.git</code> of the workspace as a snapshot,
+     * and removes least recently used snapshots exceeding the budget.
+     * 
+     * @param key
+     * @param gitDir
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void save(@Nonnull String key, @Nonnull FilePath gitDir) throws IOException, InterruptedException {
+        FilePath snapshot = root.child(key);
+        if (snapshot.isDirectory()) {
+            snapshot.touch(System.currentTimeMillis());
+            return;
+        }
+        root.mkdirs();
+        FilePath tmp = root.createTempDir(key, TMP_SUFFIX);
+        try {
+            tmp.deleteRecursive();
+            long size = gitDir.act(new LinkCopyCallable(tmp.getRemote()));
+            root.child(key + SIZE_SUFFIX).write(Long.toString(size), "UTF-8");
+            tmp.renameTo(snapshot);
+        } catch (IOException e) {
+            // another build may save the same snapshot at the same time.
+            listener.getLogger().println(String.format("Failed to save a snapshot: %s", e.getMessage()));
+        } finally {
+            if (tmp.exists()) {
+                tmp.deleteRecursive();
+            }
+        }
+        evict();
+    }
+    
+    private void evict() throws IOException, InterruptedException {
+        for (String removed: root.act(new EvictCallable(BUDGET * 1024L * 1024L))) {
+            listener.getLogger().println(String.format("Removed a snapshot %s", removed));
+        }
+    }
+    
+    /**
+     * Removes least recently used snapshots exceeding the budget.
+     * 
+     * The recorded sizes count objects shared among snapshots with hard links
+     * for each of them.
+     * Only when they exceed the budget,
+     * snapshots are walked to count each shared object only once.
+     */
+    private static class EvictCallable implements FilePath.FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+        
+        private final long budget;
+        
+        public EvictCallable(long budget) {
+            this.budget = budget;
+        }
+        
+        @Override
+        public List<String> invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            List<String> removed = new ArrayList<String>();
+            File[] snapshots = root.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.isDirectory() && !f.getName().endsWith(TMP_SUFFIX);
+                }
+            });
+            if (snapshots == null) {
+                return removed;
+            }
+            long recorded = 0;
+            for (File snapshot: snapshots) {
+                recorded += getRecordedSize(snapshot);
+            }
+            if (recorded <= budget) {
+                return removed;
+            }
+            // most recently used first.
+            Arrays.sort(snapshots, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    return Long.valueOf(o2.lastModified()).compareTo(o1.lastModified());
+                }
+            });
+            Set<Long> inodes = new HashSet<Long>();
+            long total = 0;
+            for (File snapshot: snapshots) {
+                if (total <= budget) {
+                    total += sizeOf(snapshot, inodes);
+                    if (total <= budget) {
+                        continue;
+                    }
+                }
+                FileUtils.deleteDirectory(snapshot);
+                FileUtils.deleteQuietly(new File(root, snapshot.getName() + SIZE_SUFFIX));
+                removed.add(snapshot.getName());
+            }
+            return removed;
+        }
+        
+        private static long getRecordedSize(File snapshot) throws IOException {
+            File sizeFile = new File(snapshot.getParentFile(), snapshot.getName() + SIZE_SUFFIX);
+            if (sizeFile.isFile()) {
+                try {
+                    return Long.parseLong(FileUtils.readFileToString(sizeFile, "UTF-8").trim());
+                } catch (NumberFormatException e) {
+                    // record again.
+                }
+            }
+            long size = sizeOf(snapshot, new HashSet<Long>());
+            FileUtils.writeStringToFile(sizeFile, Long.toString(size), "UTF-8");
+            return size;
+        }
+        
+        private static long sizeOf(File f, Set<Long> inodes) {
+            if (f.isDirectory()) {
+                File[] children = f.listFiles();
+                if (children == null) {
+                    return 0;
+                }
+                long size = 0;
+                for (File child: children) {
+                    size += sizeOf(child, inodes);
+                }
+                return size;
+            }
+            Long inode = getInode(f);
+            if (inode != null && !inodes.add(inode)) {
+                // counted in another snapshot.
+                return 0;
+            }
+            return f.length();
+        }
+        
+        private static Long getInode(File f) {
+            if (Functions.isWindows()) {
+                return null;
+            }
+            try {
+                return PosixAPI.jnr().stat(f.getAbsolutePath()).ino();
+            } catch (LinkageError e) {
+                // native library not available.
+                return null;
+            } catch (RuntimeException e) {
+                // failed to stat.
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Copies files of <code>.git</code> saved in snapshots, making hard links for objects.
+     * Returns the total size of copied files.
+     * 
+     * @see SnapshotCacheBackend#getSnapshotScanner()
+     */
+    private static class LinkCopyCallable implements FilePath.FileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+        
+        private final String dest;
+        
+        public LinkCopyCallable(String dest) {
+            this.dest = dest;
+        }
+        
+        @Override
+        public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            final File destDir = new File(dest);
+            if (!destDir.isDirectory() && !destDir.mkdirs()) {
+                throw new IOException(String.format("Failed to create %s", destDir));
+            }
+            final long[] size = new long[1];
+            SnapshotCacheBackend.getSnapshotScanner().scan(f, new FileVisitor() {
+                @Override
+                public void visit(File src, String relativePath) throws IOException {
+                    File dst = new File(destDir, relativePath);
+                    File parent = dst.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs()) {
+                        throw new IOException(String.format("Failed to create %s", parent));
+                    }
+                    if (!relativePath.startsWith("objects" + File.separator) || !link(src, dst)) {
+                        FileUtils.copyFile(src, dst);
+                    }
+                    size[0] += src.length();
+                }
+            });
+            return size[0];
+        }
+        
+        private static boolean link(File src, File dst) {
+            if (Functions.isWindows()) {
+                return false;
+            }
+            try {
+                return PosixAPI.jnr().link(src.getAbsolutePath(), dst.getAbsolutePath()) == 0;
+            } catch (LinkageError e) {
+                // native library not available.
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import jp.ikedam.jenkins.plugins.gitshallowdepth.CulpritsStatistics.Phase;
+
+/**
+ * Tests for {@link CulpritsStatistics}
+ */
+public class CulpritsStatisticsTest {
+    @Test
+    public void testCounters() throws Exception {
+        CulpritsStatistics stats = new CulpritsStatistics();
+        stats.visitBuild();
+        stats.visitBuild();
+        stats.parseChangeSet();
+        stats.resolveUser();
+        stats.resolveUser();
+        stats.resolveUser();
+        assertEquals(2, stats.getBuilds());
+        assertEquals(1, stats.getChangeSets());
+        assertEquals(3, stats.getUsers());
+        assertThat(stats.toString(), containsString("2 builds, 1 changesets, 3 users"));
+    }
+    
+    @Test
+    public void testPhases() throws Exception {
+        CulpritsStatistics stats = new CulpritsStatistics();
+        long now = System.nanoTime();
+        stats.end(Phase.PRECOMPUTED, now - TimeUnit.MILLISECONDS.toNanos(100));
+        stats.end(Phase.CHANGESETS, now - TimeUnit.MILLISECONDS.toNanos(200));
+        stats.end(Phase.CHANGESETS, now - TimeUnit.MILLISECONDS.toNanos(300));
+        assertTrue(stats.getMillis(Phase.PRECOMPUTED) >= 100);
+        assertEquals(0, stats.getMillis(Phase.PREVIOUS_BUILDS));
+        assertTrue(stats.getMillis(Phase.CHANGESETS) >= 500);
+        assertTrue(stats.getTotalMillis() >= 600);
+        assertThat(stats.toString(), containsString("waiting precomputed culprits"));
+    }
+}
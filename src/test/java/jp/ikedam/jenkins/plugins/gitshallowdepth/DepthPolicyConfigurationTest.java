@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.TestGitRepo;
+import hudson.plugins.git.extensions.GitSCMExtension;
+
+/**
+ * Tests for {@link DepthPolicyConfiguration}
+ */
+public class DepthPolicyConfigurationTest {
+    @ClassRule
+    public static GitShallowDepthJenkinsRule j = new GitShallowDepthJenkinsRule();
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    @After
+    public void clearRules() {
+        DepthPolicyConfiguration.get().setRules(null);
+    }
+    
+    private DepthPolicyRule rule(boolean shallow, Integer depth, String jobPattern, String branchPattern, String urlPattern) {
+        DepthPolicyRule rule = new DepthPolicyRule(shallow, depth);
+        rule.setJobPattern(jobPattern);
+        rule.setBranchPattern(branchPattern);
+        rule.setUrlPattern(urlPattern);
+        return rule;
+    }
+    
+    @Test
+    public void testResolve() throws Exception {
+        DepthPolicyRule pr = rule(true, 1, null, "PR-.*", null);
+        DepthPolicyRule release = rule(false, null, null, "release/.*", null);
+        DepthPolicyRule internal = rule(true, 10, "internal/.*", null, ".*/internal/.*");
+        DepthPolicyRule others = rule(true, 50, null, null, null);
+        DepthPolicyConfiguration policy = DepthPolicyConfiguration.get();
+        policy.setRules(Arrays.asList(pr, release, internal, others));
+        
+        assertSame(pr, policy.resolve("project/PR-1", "PR-1", "https://example.com/project.git"));
+        assertSame(release, policy.resolve("project/release%2F1.0", "release/1.0", "https://example.com/project.git"));
+        assertSame(internal, policy.resolve("internal/project", "master", "https://example.com/internal/project.git"));
+        assertSame(others, policy.resolve("internal/project", "master", "https://example.com/project.git"));
+        // cached
+        assertSame(pr, policy.resolve("project/PR-1", "PR-1", "https://example.com/project.git"));
+        
+        // cache is cleared when rules are updated.
+        policy.setRules(Arrays.asList(others));
+        assertSame(others, policy.resolve("project/PR-1", "PR-1", "https://example.com/project.git"));
+        
+        policy.setRules(Collections.<DepthPolicyRule>emptyList());
+        assertNull(policy.resolve("project/PR-1", "PR-1", "https://example.com/project.git"));
+    }
+    
+    @Test
+    public void testResolveSkipsInvalidPattern() throws Exception {
+        DepthPolicyRule invalid = rule(true, 1, null, "[", null);
+        DepthPolicyRule others = rule(true, 50, null, null, null);
+        DepthPolicyConfiguration policy = DepthPolicyConfiguration.get();
+        policy.setRules(Arrays.asList(invalid, others));
+        
+        assertSame(others, policy.resolve("project", "master", "https://example.com/project.git"));
+    }
+    
+    @Test
+    public void testResolveCacheIsBounded() throws Exception {
+        int cacheSize = DepthPolicyConfiguration.CACHE_SIZE;
+        try {
+            DepthPolicyConfiguration.CACHE_SIZE = 1;
+            DepthPolicyRule pr = rule(true, 1, null, "PR-.*", null);
+            DepthPolicyConfiguration policy = DepthPolicyConfiguration.get();
+            policy.setRules(Arrays.asList(pr));
+            
+            assertSame(pr, policy.resolve("project/PR-1", "PR-1", "https://example.com/project.git"));
+            assertNull(policy.resolve("project/master", "master", "https://example.com/project.git"));
+            assertSame(pr, policy.resolve("project/PR-1", "PR-1", "https://example.com/project.git"));
+        } finally {
+            DepthPolicyConfiguration.CACHE_SIZE = cacheSize;
+        }
+    }
+    
+    @Test
+    public void testConfiguration() throws Exception {
+        DepthPolicyConfiguration policy = DepthPolicyConfiguration.get();
+        policy.setRules(Arrays.asList(
+                rule(true, 1, "project/.*", "PR-.*", "https://example.com/.*"),
+                rule(false, null, null, null, null)
+        ));
+        j.configRoundtrip();
+        assertEquals(2, policy.getRules().size());
+        j.assertEqualDataBoundBeans(
+                rule(true, 1, "project/.*", "PR-.*", "https://example.com/.*"),
+                policy.getRules().get(0)
+        );
+        j.assertEqualDataBoundBeans(
+                rule(false, null, null, null, null),
+                policy.getRules().get(1)
+        );
+    }
+    
+    @Test
+    public void testCloneWithPolicy() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        for (int i = 1; i <= 5; ++i) {
+            repo.commit("afile", Integer.toString(i), repo.johnDoe, String.format("Commit %d", i));
+        }
+        DepthPolicyConfiguration.get().setRules(Arrays.asList(rule(true, 3, null, ".*/master", null)));
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Arrays.<GitSCMExtension>asList(new ShallowDepthCloneOption(null))
+        ));
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        GitClient git = Git.with(StreamBuildListener.fromStderr(), null)
+                .in(b.getWorkspace())
+                .using("git")
+                .getClient();
+        assertEquals(3, git.revList("HEAD").size());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link GitConfigEnvironment}
+ */
+public class GitConfigEnvironmentTest {
+    @Test
+    public void testAdd() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        GitConfigEnvironment.add(env, "protocol.version", "2");
+        GitConfigEnvironment.add(env, "fetch.negotiationAlgorithm", "skipping");
+        assertEquals("2", env.get("GIT_CONFIG_COUNT"));
+        assertEquals("protocol.version", env.get("GIT_CONFIG_KEY_0"));
+        assertEquals("2", env.get("GIT_CONFIG_VALUE_0"));
+        assertEquals("fetch.negotiationAlgorithm", env.get("GIT_CONFIG_KEY_1"));
+        assertEquals("skipping", env.get("GIT_CONFIG_VALUE_1"));
+    }
+    
+    @Test
+    public void testAddPreservingExisting() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("GIT_CONFIG_COUNT", "1");
+        env.put("GIT_CONFIG_KEY_0", "user.name");
+        env.put("GIT_CONFIG_VALUE_0", "Jenkins");
+        GitConfigEnvironment.add(env, "protocol.version", "2");
+        assertEquals("2", env.get("GIT_CONFIG_COUNT"));
+        assertEquals("user.name", env.get("GIT_CONFIG_KEY_0"));
+        assertEquals("protocol.version", env.get("GIT_CONFIG_KEY_1"));
+        assertEquals("2", env.get("GIT_CONFIG_VALUE_1"));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assume;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.FreeStyleBuild;
+import hudson.model.StreamBuildListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+
+/**
+ * Tests for {@link GitCredentialsEnvironment}
+ */
+public class GitCredentialsEnvironmentTest {
+    @ClassRule
+    public static JenkinsRule j = new JenkinsRule();
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    private GitSCM createScm(String credentialsId) {
+        return new GitSCM(
+                Arrays.asList(new UserRemoteConfig("https://example.com/repo.git", "origin", "", credentialsId)),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        );
+    }
+    
+    @Test
+    public void testLookup() throws Exception {
+        UsernamePasswordCredentialsImpl credentials = new UsernamePasswordCredentialsImpl(
+                CredentialsScope.GLOBAL, "lookup", "test", "user", "secret"
+        );
+        SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+        FreeStyleBuild b = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        assertSame(credentials, GitCredentialsEnvironment.lookup(createScm("lookup"), b));
+        assertNull(GitCredentialsEnvironment.lookup(createScm(null), b));
+        assertNull(GitCredentialsEnvironment.lookup(createScm("nosuchcredentials"), b));
+    }
+    
+    private String askpass(String script, String prompt) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, new Launcher.LocalLauncher(StreamBuildListener.fromStderr()).launch()
+                .cmds(script, prompt)
+                .stdout(out)
+                .join()
+        );
+        return out.toString("UTF-8").trim();
+    }
+    
+    @Test
+    public void testUsernamePassword() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        UsernamePasswordCredentialsImpl credentials = new UsernamePasswordCredentialsImpl(
+                CredentialsScope.GLOBAL, "password", "test", "user", "secret"
+        );
+        FilePath dir = new FilePath(tmp.newFolder());
+        EnvVars env = new EnvVars();
+        GitCredentialsEnvironment.setUp(credentials, dir, true, env);
+        assertNotNull(env.get("GIT_ASKPASS"));
+        assertEquals("user", askpass(env.get("GIT_ASKPASS"), "Username for 'https://example.com': "));
+        assertEquals("secret", askpass(env.get("GIT_ASKPASS"), "Password for 'https://user@example.com': "));
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+
+import org.eclipse.jgit.lib.PersonIdent;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+import hudson.Launcher;
+import hudson.matrix.Axis;
+import hudson.matrix.AxisList;
+import hudson.matrix.Combination;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.User;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.plugins.emailext.ExtendedEmailPublisher;
+import hudson.plugins.emailext.ExtendedEmailPublisherContext;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.TestGitRepo;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Fingerprinter;
+import hudson.tasks.Mailer;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+import hudson.util.NullStream;
+
+/**
+ * Measures {@link RootCulpritsRecipientProvider} under concurrent build completions.
+ * 
+ * Skipped unless run with <code>-Djp.ikedam.jenkins.plugins.gitshallowdepth.RootCulpritsRecipientProviderLoadTest.enabled=true</code>.
+ * The size of the load is configured with system properties
+ * prefixed with the class name (history, fanIn, axes, users, threads, builds).
+ */
+public class RootCulpritsRecipientProviderLoadTest {
+    private static final String PREFIX = RootCulpritsRecipientProviderLoadTest.class.getName();
+    
+    private static final int HISTORY = Integer.getInteger(PREFIX + ".history", 30);
+    private static final int FAN_IN = Integer.getInteger(PREFIX + ".fanIn", 5);
+    private static final int AXES = Integer.getInteger(PREFIX + ".axes", 4);
+    private static final int USERS = Integer.getInteger(PREFIX + ".users", 20);
+    private static final int THREADS = Integer.getInteger(PREFIX + ".threads", 16);
+    private static final int BUILDS = Integer.getInteger(PREFIX + ".builds", 100);
+    
+    private static final List<Long> LATENCIES = Collections.synchronizedList(new ArrayList<Long>());
+    private static final AtomicInteger NO_RECIPIENTS = new AtomicInteger();
+    
+    @ClassRule
+    public static GitShallowDepthJenkinsRule j = new GitShallowDepthJenkinsRule();
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    @Before
+    public void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean(PREFIX + ".enabled"));
+    }
+    
+    private List<PersonIdent> createUsers() throws Exception {
+        List<PersonIdent> users = new ArrayList<PersonIdent>();
+        for (int i = 0; i < USERS; ++i) {
+            PersonIdent ident = new PersonIdent(String.format("User %d", i), String.format("user%d@example.com", i));
+            User.get(ident.getName(), true).addProperty(new Mailer.UserProperty(ident.getEmailAddress()));
+            users.add(ident);
+        }
+        return users;
+    }
+    
+    private GitSCM createScm(TestGitRepo repo) throws Exception {
+        ShallowDepthCloneOption shallow = new ShallowDepthCloneOption();
+        shallow.setDisableForMatrixParent(true);
+        return new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Arrays.<GitSCMExtension>asList(shallow)
+        );
+    }
+    
+    private static class ArtifactBuilder extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            build.getWorkspace().child("artifact.txt").write(
+                    build.getEnvironment(listener).expand("${JOB_URL}${GIT_COMMIT}"),
+                    "UTF-8"
+            );
+            return true;
+        }
+    }
+    
+    /**
+     * Consumes the last artifacts of upstream builds, and fails except the first build.
+     */
+    private static class ConsumerBuilder extends TestBuilder {
+        public static final String CONSUMED = "Consumed artifacts of upstream builds";
+        
+        private final MatrixProject matrix;
+        private final Combination combination;
+        private final List<FreeStyleProject> upstreams;
+        
+        public ConsumerBuilder(MatrixProject matrix, Combination combination, List<FreeStyleProject> upstreams) {
+            this.matrix = matrix;
+            this.combination = combination;
+            this.upstreams = upstreams;
+        }
+        
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            build.getWorkspace().child("artifact-matrix.txt").write(
+                    matrix.getLastBuild().getExactRun(combination).getWorkspace().child("artifact.txt").readToString(),
+                    "UTF-8"
+            );
+            for (int i = 0; i < upstreams.size(); ++i) {
+                build.getWorkspace().child(String.format("artifact-%d.txt", i)).write(
+                        upstreams.get(i).getLastBuild().getWorkspace().child("artifact.txt").readToString(),
+                        "UTF-8"
+                );
+            }
+            listener.getLogger().println(CONSUMED);
+            return build.getNumber() == 1;
+        }
+    }
+    
+    /**
+     * Computes recipients once when each build completes,
+     * as email-ext does after other publishers.
+     */
+    public static class LatencyRecorder extends Recorder {
+        @Override
+        public BuildStepMonitor getRequiredMonitorService() {
+            // never wait for previous builds.
+            return BuildStepMonitor.NONE;
+        }
+        
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            BuildListener nullListener = new StreamBuildListener(new NullStream());
+            Set<InternetAddress> to = new HashSet<InternetAddress>();
+            Set<InternetAddress> cc = new HashSet<InternetAddress>();
+            Set<InternetAddress> bcc = new HashSet<InternetAddress>();
+            long start = System.nanoTime();
+            new RootCulpritsRecipientProvider().addRecipients(
+                    new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), build, nullListener),
+                    build.getEnvironment(nullListener),
+                    to,
+                    cc,
+                    bcc
+            );
+            LATENCIES.add(System.nanoTime() - start);
+            if (to.isEmpty()) {
+                NO_RECIPIENTS.incrementAndGet();
+            }
+            return true;
+        }
+        
+        @TestExtension("testConcurrentNotifications")
+        public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+            @SuppressWarnings("rawtypes")
+            @Override
+            public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+                return true;
+            }
+            
+            @Override
+            public String getDisplayName() {
+                return "Measure culprits";
+            }
+        }
+    }
+    
+    private static long usedHeap() {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+    
+    private static long percentile(long[] sorted, double q) {
+        return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)];
+    }
+    
+    @Test
+    public void testConcurrentNotifications() throws Exception {
+        // Consider a following case:
+        // 
+        // A matrix root project and FAN_IN freestyle projects share a repository.
+        // downstream consumes artifacts of all of them, and keeps failing
+        // for HISTORY builds, while USERS commit to the repository.
+        // Then BUILDS downstream builds run and complete concurrently,
+        // and each computes the recipients once.
+        List<PersonIdent> users = createUsers();
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit("afile", "initial file", users.get(0), "Initial commit");
+        
+        MatrixProject matrix = j.createMatrixProject();
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < AXES; ++i) {
+            values.add(String.format("value%d", i));
+        }
+        AxisList axes = new AxisList(new Axis("axis1", values));
+        matrix.setAxes(axes);
+        matrix.setScm(createScm(repo));
+        matrix.getBuildersList().add(new ArtifactBuilder());
+        matrix.getPublishersList().add(new Fingerprinter("artifact.txt"));
+        
+        List<FreeStyleProject> upstreams = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < FAN_IN; ++i) {
+            FreeStyleProject upstream = j.createFreeStyleProject();
+            upstream.setScm(createScm(repo));
+            upstream.getBuildersList().add(new ArtifactBuilder());
+            upstream.getPublishersList().add(new Fingerprinter("artifact.txt"));
+            upstreams.add(upstream);
+        }
+        
+        FreeStyleProject downstream = j.createFreeStyleProject();
+        downstream.getBuildersList().add(new ConsumerBuilder(matrix, new Combination(axes, "value0"), upstreams));
+        downstream.getPublishersList().add(new Fingerprinter("artifact*.txt"));
+        
+        j.assertBuildStatusSuccess(matrix.scheduleBuild2(0));
+        for (FreeStyleProject upstream: upstreams) {
+            j.assertBuildStatusSuccess(upstream.scheduleBuild2(0));
+        }
+        j.assertBuildStatusSuccess(downstream.scheduleBuild2(0));
+        
+        for (int i = 0; i < HISTORY; ++i) {
+            repo.commit(
+                    "afile",
+                    String.format("updated for #%d", i),
+                    users.get(i % users.size()),
+                    String.format("Commit %d", i)
+            );
+            MatrixBuild m = j.assertBuildStatusSuccess(matrix.scheduleBuild2(0));
+            for (AbstractBuild<?, ?> run: m.getExactRuns()) {
+                // remove the repository of children to clear git log,
+                // but keep artifact.txt for downstream.
+                run.getWorkspace().child(".git").deleteRecursive();
+            }
+            for (FreeStyleProject upstream: upstreams) {
+                j.assertBuildStatusSuccess(upstream.scheduleBuild2(0));
+            }
+            FreeStyleBuild b = j.assertBuildStatus(Result.FAILURE, downstream.scheduleBuild2(0).get());
+            // fails not for an exception but for the result of ConsumerBuilder.
+            j.assertLogContains(ConsumerBuilder.CONSUMED, b);
+            assertEquals(FAN_IN + 1, b.getDependencyChanges(downstream.getFirstBuild()).size());
+        }
+        
+        j.jenkins.setNumExecutors(THREADS);
+        downstream.setConcurrentBuild(true);
+        // parameters not to let the queue merge builds.
+        downstream.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("ID", "")));
+        downstream.getPublishersList().add(new LatencyRecorder());
+        LATENCIES.clear();
+        NO_RECIPIENTS.set(0);
+        
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < BUILDS; ++i) {
+            futures.add(downstream.scheduleBuild2(
+                    0,
+                    new Cause.UserIdCause(),
+                    new ParametersAction(new StringParameterValue("ID", Integer.toString(i)))
+            ));
+        }
+        for (QueueTaskFuture<FreeStyleBuild> f: futures) {
+            j.assertLogContains(ConsumerBuilder.CONSUMED, j.assertBuildStatus(Result.FAILURE, f.get()));
+        }
+        long total = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        
+        assertEquals(BUILDS, LATENCIES.size());
+        // downstream has no SCM, and all recipients come from upstream changes.
+        assertEquals(0, NO_RECIPIENTS.get());
+        long[] latencies = new long[LATENCIES.size()];
+        for (int i = 0; i < latencies.length; ++i) {
+            latencies[i] = LATENCIES.get(i);
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(
+                "%d concurrent builds after %d builds with %d executors in %d ms:"
+                    + " p50=%.1f ms, p90=%.1f ms, p99=%.1f ms, max=%.1f ms, heap growth=%d KiB",
+                BUILDS,
+                HISTORY,
+                THREADS,
+                total / 1000000L,
+                percentile(latencies, 0.50) / 1000000.0,
+                percentile(latencies, 0.90) / 1000000.0,
+                percentile(latencies, 0.99) / 1000000.0,
+                latencies[latencies.length - 1] / 1000000.0,
+                (heapAfter - heapBefore) / 1024L
+        ));
+    }
+}
@@ -24,20 +24,32 @@
 
 package jp.ikedam.jenkins.plugins.gitshallowdepth;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.mail.internet.InternetAddress;
 
+import net.sf.json.JSONArray;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
@@ -46,6 +58,8 @@ import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.TestBuilder;
 
 import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.cli.CLICommandInvoker;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
 import hudson.matrix.Combination;
@@ -55,8 +69,10 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Item;
 import hudson.model.Result;
 import hudson.model.StreamBuildListener;
+import hudson.model.User;
 import hudson.plugins.emailext.ExtendedEmailPublisher;
 import hudson.plugins.emailext.ExtendedEmailPublisherContext;
 import hudson.plugins.emailext.MatrixTriggerMode;
@@ -69,7 +85,14 @@ import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.SubmoduleConfig;
 import hudson.plugins.git.TestGitRepo;
 import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.security.ACL;
+import hudson.security.AuthorizationMatrixProperty;
+import hudson.security.AuthorizationStrategy;
+import hudson.security.Permission;
+import hudson.security.ProjectMatrixAuthorizationStrategy;
+import hudson.security.SecurityRealm;
 import hudson.tasks.Fingerprinter;
+import jenkins.model.Jenkins;
 
 /**
  * Tests for {@link RootCulpritsRecipientProvider}
@@ -372,4 +395,582 @@ public class RootCulpritsRecipientProviderTest {
         assertEquals(to, Collections.<InternetAddress>emptySet());
         assertThat(to, is(Collections.<InternetAddress>emptySet()));
     }
+
+    private ExtendedEmailPublisher createPublisher() {
+        return createPublisher(new RootCulpritsRecipientProvider());
+    }
+    
+    private ExtendedEmailPublisher createPublisher(RootCulpritsRecipientProvider provider) {
+        return new ExtendedEmailPublisher(
+                "test@example.com",
+                "text/plain",
+                "subject",
+                "body",
+                "",
+                "",
+                0,
+                "",
+                false,
+                Arrays.<EmailTrigger>asList(new FailureTrigger(
+                        Arrays.<RecipientProvider>asList(provider),
+                        "",
+                        "",
+                        "",
+                        "",
+                        "",
+                        0,
+                        ""
+                )),
+                null
+        );
+    }
+    
+    @Test
+    public void testPrecomputeCulprits() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        p.getPublishersList().add(createPublisher());
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        final List<Set<User>> precomputed = new ArrayList<Set<User>>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                precomputed.add(PrecomputedCulprits.get(build));
+                return true;
+            }
+        });
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        assertThat(precomputed.get(0), hasItem(User.get(repo.janeDoe.getName())));
+        // released after the build, and never saved.
+        assertNull(PrecomputedCulprits.get(b));
+        assertThat(new XmlFile(new File(b.getRootDir(), "build.xml")).asString(), not(containsString("gitshallowdepth")));
+    }
+    
+    @Test
+    public void testNoPrecomputeWithoutProvider() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        final List<Boolean> started = new ArrayList<Boolean>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                started.add(PrecomputedCulprits.isStarted(build));
+                return true;
+            }
+        });
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertEquals(Arrays.asList(false), started);
+    }
+    
+    @Test
+    public void testConfigurationWithAggregateMatrix() throws Exception {
+        MatrixProject p = j.createMatrixProject();
+        RootCulpritsRecipientProvider provider = new RootCulpritsRecipientProvider();
+        provider.setAggregateMatrix(true);
+        provider.setCoalescingWindow(30);
+        ExtendedEmailPublisher emailExt = createPublisher(provider);
+        p.getPublishersList().add(emailExt);
+        j.configRoundtrip(p);
+        
+        j.assertEqualDataBoundBeans(
+                emailExt.getConfiguredTriggers().get(0).getEmail().getRecipientProviders(),
+                p.getPublishersList().get(ExtendedEmailPublisher.class).getConfiguredTriggers().get(0).getEmail().getRecipientProviders()
+        );
+    }
+    
+    @Test
+    public void testAggregateMatrix() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        MatrixProject p = j.createMatrixProject();
+        AxisList axes = new AxisList(new Axis("axis1", "value1", "value2"));
+        p.setAxes(axes);
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        RootCulpritsRecipientProvider provider = new RootCulpritsRecipientProvider();
+        provider.setAggregateMatrix(true);
+        p.getPublishersList().add(createPublisher(provider));
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                return !"value2".equals(build.getBuildVariables().get("axis1"));
+            }
+        });
+        MatrixBuild b = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        
+        assertEquals(
+                "axis1=value2",
+                b.getEnvironment(StreamBuildListener.fromStderr()).get(MatrixCulprits.FAILED_CONFIGURATIONS)
+        );
+        
+        Set<InternetAddress> to = new HashSet<InternetAddress>();
+        Set<InternetAddress> cc = new HashSet<InternetAddress>();
+        Set<InternetAddress> bcc = new HashSet<InternetAddress>();
+        
+        // children send nothing.
+        AbstractBuild<?, ?> child = b.getExactRun(new Combination(axes, "value2"));
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), child, StreamBuildListener.fromStderr()),
+                child.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertTrue(to.isEmpty());
+        
+        // the parent sends to culprits.
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b, StreamBuildListener.fromStderr()),
+                b.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertThat(to, hasItem(InternetAddress.parse(repo.janeDoe.getEmailAddress())[0]));
+    }
+    
+    @Test
+    public void testCoalescingWindow() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                return false;
+            }
+        });
+        RootCulpritsRecipientProvider provider = new RootCulpritsRecipientProvider();
+        provider.setCoalescingWindow(60);
+        
+        Set<InternetAddress> to = new HashSet<InternetAddress>();
+        Set<InternetAddress> cc = new HashSet<InternetAddress>();
+        Set<InternetAddress> bcc = new HashSet<InternetAddress>();
+        
+        // The first failure is notified.
+        FreeStyleBuild b1 = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b1, StreamBuildListener.fromStderr()),
+                b1.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertTrue(b1.getAction(NotifiedCulpritsAction.class).isNotified());
+        
+        // The second failure is coalesced.
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        FreeStyleBuild b2 = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        to.clear();
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b2, StreamBuildListener.fromStderr()),
+                b2.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertTrue(to.isEmpty());
+        assertFalse(b2.getAction(NotifiedCulpritsAction.class).isNotified());
+        
+        // The coalesced culprits are notified after the window.
+        FreeStyleBuild b3 = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        provider.setCoalescingWindow(null);
+        to.clear();
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b3, StreamBuildListener.fromStderr()),
+                b3.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertThat(to, hasItem(InternetAddress.parse(repo.janeDoe.getEmailAddress())[0]));
+    }
+    
+    @Test
+    public void testCoalescedCulpritsWithSuccess() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                return false;
+            }
+        });
+        RootCulpritsRecipientProvider provider = new RootCulpritsRecipientProvider();
+        provider.setCoalescingWindow(60);
+        
+        Set<InternetAddress> to = new HashSet<InternetAddress>();
+        Set<InternetAddress> cc = new HashSet<InternetAddress>();
+        Set<InternetAddress> bcc = new HashSet<InternetAddress>();
+        
+        FreeStyleBuild b1 = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b1, StreamBuildListener.fromStderr()),
+                b1.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        FreeStyleBuild b2 = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        to.clear();
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b2, StreamBuildListener.fromStderr()),
+                b2.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertTrue(to.isEmpty());
+        
+        // The success ending the streak sends the coalesced culprits.
+        p.getBuildersList().clear();
+        FreeStyleBuild b3 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        to.clear();
+        provider.addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b3, StreamBuildListener.fromStderr()),
+                b3.getEnvironment(StreamBuildListener.fromStderr()),
+                to,
+                cc,
+                bcc
+        );
+        assertThat(to, hasItem(InternetAddress.parse(repo.janeDoe.getEmailAddress())[0]));
+    }
+    
+    @Test
+    public void testNoNotifiedCulpritsWithoutCoalescingWindow() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        new RootCulpritsRecipientProvider().addRecipients(
+                new ExtendedEmailPublisherContext(new ExtendedEmailPublisher(), b, StreamBuildListener.fromStderr()),
+                b.getEnvironment(StreamBuildListener.fromStderr()),
+                new HashSet<InternetAddress>(),
+                new HashSet<InternetAddress>(),
+                new HashSet<InternetAddress>()
+        );
+        assertNull(b.getAction(NotifiedCulpritsAction.class));
+    }
+    
+    @Test
+    public void testRootCulpritsApi() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        JSONArray culprits = JSONArray.fromObject(
+                j.createWebClient().goTo(b.getUrl() + "rootCulprits/", "application/json").getWebResponse().getContentAsString()
+        );
+        assertEquals(1, culprits.size());
+        assertEquals(User.get(repo.janeDoe.getName()).getId(), culprits.getJSONObject(0).getString("id"));
+    }
+    
+    @Test
+    public void testRootCulpritsCommand() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, "root-culprits")
+                .invokeWithArgs(p.getFullName(), Integer.toString(b.getNumber()));
+        assertThat(result, CLICommandInvoker.Matcher.succeeded());
+        assertEquals(String.format("%s%n", User.get(repo.janeDoe.getName()).getId()), result.stdout());
+        
+        result = new CLICommandInvoker(j, "root-culprits")
+                .invokeWithArgs(p.getFullName(), "100");
+        assertThat(result, not(CLICommandInvoker.Matcher.succeeded()));
+        assertThat(result.stderr(), containsString("No such build #100"));
+    }
+    
+    @Test
+    public void testUpstreamCulpritsFilteredByPermission() throws Exception {
+        TestGitRepo repo = new TestGitRepo(
+                "repo",
+                tmp.newFolder(),
+                StreamBuildListener.fromStderr()
+        );
+        repo.commit(
+                "afile",
+                "initial file",
+                repo.johnDoe,
+                "Committed file for build#1"
+        );
+        
+        final FreeStyleProject upstream = j.createFreeStyleProject();
+        upstream.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        upstream.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("artifact.txt").write(
+                        build.getEnvironment(listener).expand("${JOB_URL}${GIT_COMMIT}"),
+                        "UTF-8"
+                );
+                return true;
+            }
+        });
+        upstream.getPublishersList().add(new Fingerprinter("artifact.txt"));
+        
+        FreeStyleProject downstream = j.createFreeStyleProject();
+        downstream.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("artifact.txt").write(
+                        upstream.getLastBuild().getWorkspace().child("artifact.txt").readToString(),
+                        "UTF-8"
+                );
+                return build.getNumber() == 1;
+            }
+        });
+        downstream.getPublishersList().add(new Fingerprinter("artifact.txt"));
+        
+        j.assertBuildStatusSuccess(upstream.scheduleBuild2(0));
+        j.assertBuildStatusSuccess(downstream.scheduleBuild2(0));
+        repo.commit(
+                "afile",
+                "updated for #2",
+                repo.janeDoe,
+                "Committed file for build#2"
+        );
+        j.assertBuildStatusSuccess(upstream.scheduleBuild2(0));
+        FreeStyleBuild b = j.assertBuildStatus(Result.FAILURE, downstream.scheduleBuild2(0).get());
+        User jane = User.get(repo.janeDoe.getName());
+        
+        ProjectMatrixAuthorizationStrategy auth = new ProjectMatrixAuthorizationStrategy();
+        auth.add(Jenkins.ADMINISTER, "admin");
+        auth.add(Jenkins.READ, "alice");
+        Map<Permission, Set<String>> perms = new HashMap<Permission, Set<String>>();
+        perms.put(Item.READ, Collections.singleton("alice"));
+        downstream.addProperty(new AuthorizationMatrixProperty(perms));
+        j.jenkins.setAuthorizationStrategy(auth);
+        try {
+            SecurityContext orig = ACL.impersonate(new UsernamePasswordAuthenticationToken(
+                    "alice",
+                    "alice",
+                    new GrantedAuthority[] { SecurityRealm.AUTHENTICATED_AUTHORITY }
+            ));
+            try {
+                assertThat(RootCulpritsCache.get(b), not(hasItem(jane)));
+            } finally {
+                SecurityContextHolder.setContext(orig);
+            }
+            orig = ACL.impersonate(new UsernamePasswordAuthenticationToken(
+                    "admin",
+                    "admin",
+                    new GrantedAuthority[] { SecurityRealm.AUTHENTICATED_AUTHORITY }
+            ));
+            try {
+                assertThat(RootCulpritsCache.get(b), hasItem(jane));
+            } finally {
+                SecurityContextHolder.setContext(orig);
+            }
+        } finally {
+            j.jenkins.setAuthorizationStrategy(AuthorizationStrategy.UNSECURED);
+            downstream.removeProperty(AuthorizationMatrixProperty.class);
+        }
+    }
+    
+    @Test
+    public void testSlowThresholdReport() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        repo.commit("afile", "initial file", repo.johnDoe, "Committed file for build#1");
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        long slowThreshold = RootCulpritsRecipientProvider.SLOW_THRESHOLD;
+        try {
+            RootCulpritsRecipientProvider.SLOW_THRESHOLD = 0;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ExtendedEmailPublisherContext context = new ExtendedEmailPublisherContext(
+                    new ExtendedEmailPublisher(),
+                    b,
+                    new StreamBuildListener(out)
+            );
+            new RootCulpritsRecipientProvider().addRecipients(
+                    context,
+                    b.getEnvironment(StreamBuildListener.fromStderr()),
+                    new HashSet<InternetAddress>(),
+                    new HashSet<InternetAddress>(),
+                    new HashSet<InternetAddress>()
+            );
+            String log = out.toString("UTF-8");
+            assertThat(log, containsString(String.format("Computed culprits including root builds for %s", b.getFullDisplayName())));
+            assertThat(log, containsString("1 builds, 1 changesets, 1 users"));
+        } finally {
+            RootCulpritsRecipientProvider.SLOW_THRESHOLD = slowThreshold;
+        }
+    }
 }
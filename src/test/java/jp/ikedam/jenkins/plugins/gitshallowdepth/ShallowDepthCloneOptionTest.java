@@ -25,35 +25,54 @@
 package jp.ikedam.jenkins.plugins.gitshallowdepth;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
+import hudson.FilePath;
+import hudson.Launcher;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
 import hudson.matrix.Combination;
 import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixProject;
+import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
+import hudson.model.Result;
 import hudson.model.StreamBuildListener;
 import hudson.model.TaskListener;
 import hudson.model.TopLevelItem;
 import hudson.model.FreeStyleProject;
 import hudson.plugins.git.BranchSpec;
 import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.GitTool;
 import hudson.plugins.git.SubmoduleConfig;
 import hudson.plugins.git.TestGitRepo;
 import hudson.plugins.git.UserRemoteConfig;
 import hudson.plugins.git.extensions.GitSCMExtension;
 import hudson.plugins.git.extensions.impl.CloneOption;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import hudson.tools.ToolProperty;
+import hudson.util.ArgumentListBuilder;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.jenkinsci.plugins.gitclient.Git;
 import org.jenkinsci.plugins.gitclient.GitClient;
+import org.jenkinsci.plugins.gitclient.JGitTool;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.TestBuilder;
 
 /**
  *
@@ -117,6 +136,91 @@ public class ShallowDepthCloneOptionTest {
         doTestConfigure(clone, MatrixProject.class);
     }
     
+    @Test
+    public void testConfigureWithExactChangelog() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setExactChangelog(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithSubmodules() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setSubmoduleDepth(1);
+        clone.setSubmoduleJobs(4);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithPrewarm() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setPrewarm(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithLimits() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setMaxRepositorySize(100);
+        clone.setCloneTimeout(5);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithRepositoryMaintenance() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setRepositoryMaintenance(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithTransport() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setProtocolV2(true);
+        clone.setNegotiationAlgorithm("skipping");
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithSnapshotCache() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setSnapshotCache(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithLfs() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setLfsPull(true);
+        clone.setLfsInclude("assets/**,docs/*.png");
+        clone.setLfsConcurrentTransfers(16);
+        clone.setLfsSharedStorage(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithCloneTrace() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setCloneTrace(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithThreads() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setCheckoutWorkers("auto");
+        clone.setPackThreads("8");
+        clone.setCompressionLevel(1);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
+    @Test
+    public void testConfigureWithSingleFlight() throws Exception {
+        ShallowDepthCloneOption clone = new ShallowDepthCloneOption(null);
+        clone.setSingleFlight(true);
+        doTestConfigure(clone, FreeStyleProject.class);
+    }
+    
     private TaskListener createListener() throws Exception {
         return StreamBuildListener.fromStderr();
     }
@@ -124,9 +228,13 @@ public class ShallowDepthCloneOptionTest {
     private final int COMMITS = 10;
     
     private TestGitRepo createRepo() throws Exception {
+        return createRepo(tmp.newFolder());
+    }
+    
+    private TestGitRepo createRepo(File dir) throws Exception {
         TestGitRepo repo = new TestGitRepo(
                 "repo",
-                tmp.newFolder(),
+                dir,
                 createListener()
         );
         for (int i = 1; i <= COMMITS; ++i) {
@@ -142,9 +250,14 @@ public class ShallowDepthCloneOptionTest {
     
     @SuppressWarnings("rawtypes") // Somehow specifing generics for AbstractProject causes a compilation error.
     private <T extends AbstractProject & TopLevelItem> T createProjectForTest(ShallowDepthCloneOption shallowClone, Class<T> projectClass) throws Exception {
+        return createProjectForTest(shallowClone, projectClass, createRepo());
+    }
+    
+    @SuppressWarnings("rawtypes") // Somehow specifing generics for AbstractProject causes a compilation error.
+    private <T extends AbstractProject & TopLevelItem> T createProjectForTest(ShallowDepthCloneOption shallowClone, Class<T> projectClass, TestGitRepo repo) throws Exception {
         T p = j.jenkins.createProject(projectClass, j.createUniqueProjectName());
         GitSCM scm = new GitSCM(
-                createRepo().remoteConfigs(),
+                repo.remoteConfigs(),
                 Arrays.asList(new BranchSpec("*/master")),
                 false,  // doGenerateSubmoduleConfigurations
                 Collections.<SubmoduleConfig>emptyList(),
@@ -181,6 +294,38 @@ public class ShallowDepthCloneOptionTest {
         assertEquals(5, git.revList("HEAD").size());
     }
     
+    @Test
+    public void testCloneWithJGit() throws Exception {
+        GitTool.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(GitTool.DescriptorImpl.class);
+        GitTool[] installations = descriptor.getInstallations();
+        List<GitTool> tools = new ArrayList<GitTool>(Arrays.asList(installations));
+        tools.add(new JGitTool(Collections.<ToolProperty<?>>emptyList()));
+        descriptor.setInstallations(tools.toArray(new GitTool[tools.size()]));
+        try {
+            FreeStyleProject p = j.createFreeStyleProject();
+            p.setScm(new GitSCM(
+                    createRepo().remoteConfigs(),
+                    Arrays.asList(new BranchSpec("*/master")),
+                    false,  // doGenerateSubmoduleConfigurations
+                    Collections.<SubmoduleConfig>emptyList(),
+                    null,   // browser
+                    JGitTool.MAGIC_EXENAME,
+                    Arrays.<GitSCMExtension>asList(new ShallowDepthCloneOption(5))
+            ));
+            FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            j.assertLogContains("JGit doesn't support shallow clone.", b);
+            j.assertLogNotContains("Using shallow clone", b);
+            // JGit clones the whole history.
+            GitClient git = Git.with(createListener(), null)
+                    .in(b.getWorkspace())
+                    .using("git")
+                    .getClient();
+            assertEquals(COMMITS, git.revList("HEAD").size());
+        } finally {
+            descriptor.setInstallations(installations);
+        }
+    }
+    
     @Test
     public void testCloneWithDisableMatrixParent() throws Exception {
         ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
@@ -240,4 +385,383 @@ public class ShallowDepthCloneOptionTest {
             assertEquals(1, git.revList("HEAD").size());
         }
     }
+    
+    @Test
+    public void testCloneWithExactChangelog() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setExactChangelog(true);
+        TestGitRepo repo = createRepo(tmp.newFolder());
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        for (int i = 1; i <= 3; ++i) {
+            repo.commit(
+                    "afile",
+                    String.format("Updated %d", i),
+                    repo.janeDoe,
+                    String.format("Update %d", i)
+            );
+        }
+        // remove workspace to force a new shallow clone.
+        b1.getWorkspace().deleteRecursive();
+        
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertEquals(3, b2.getChangeSet().getItems().length);
+    }
+    
+    @Test
+    public void testCloneExceedingMaxRepositorySize() throws Exception {
+        TestGitRepo repo = createRepo();
+        // a file not compressible enough to fit in 1 MiB.
+        StringBuilder sb = new StringBuilder();
+        Random r = new Random(0);
+        for (int i = 0; i < 4 * 1024 * 1024; ++i) {
+            sb.append((char)('a' + r.nextInt(26)));
+        }
+        repo.commit("largefile", sb.toString(), repo.johnDoe, "Large commit");
+        
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
+        shallowClone.setMaxRepositorySize(1);
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+    }
+    
+    @Test
+    public void testCloneWithSnapshotCache() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
+        shallowClone.setSnapshotCache(true);
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class);
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        b1.getWorkspace().deleteRecursive();
+        
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Restored a snapshot", b2);
+        GitClient git = Git.with(createListener(), null)
+                .in(b2.getWorkspace())
+                .using("git")
+                .getClient();
+        assertEquals(1, git.revList("HEAD").size());
+        // hooks may run commands of other jobs.
+        assertFalse(b2.getWorkspace().child(".git/hooks").exists());
+    }
+    
+    @Test
+    public void testSnapshotCacheSavesOnlyNewClones() throws Exception {
+        FilePath snapshots = j.jenkins.getRootPath().child("caches/git-shallow-depth/snapshots");
+        snapshots.deleteRecursive();
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
+        shallowClone.setSnapshotCache(true);
+        TestGitRepo repo = createRepo();
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertEquals(1, snapshots.listDirectories().size());
+        
+        // fetched incrementally.
+        repo.commit("afile", "updated", repo.janeDoe, "Update");
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertEquals(1, snapshots.listDirectories().size());
+    }
+    
+    @Test
+    public void testSnapshotCacheEviction() throws Exception {
+        FilePath snapshots = j.jenkins.getRootPath().child("caches/git-shallow-depth/snapshots");
+        snapshots.deleteRecursive();
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
+        shallowClone.setSnapshotCache(true);
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class);
+        long budget = WorkspaceSnapshotCache.BUDGET;
+        WorkspaceSnapshotCache.BUDGET = 0;
+        try {
+            FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            j.assertLogContains("Removed a snapshot", b);
+            assertTrue(snapshots.list().isEmpty());
+        } finally {
+            WorkspaceSnapshotCache.BUDGET = budget;
+        }
+    }
+    
+    @Test
+    public void testCloneWithCloneTrace() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setCloneTrace(true);
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class);
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Clone phases:", b);
+        
+        CloneTraceAction action = b.getAction(CloneTraceAction.class);
+        assertNotNull(action);
+        assertTrue(action.isCompleted());
+        List<String> names = new ArrayList<String>();
+        for (CloneTraceAction.TracedPhase phase: action.getPhases()) {
+            names.add(phase.getName());
+        }
+        assertTrue(names.contains("clone and fetch"));
+        assertTrue(names.contains("checkout"));
+        // no submodules are configured.
+        assertFalse(names.contains("submodules"));
+        assertFalse(CloneTraceAction.getTraceDir(b.getWorkspace()).exists());
+    }
+    
+    @Test
+    public void testCloneWithThreads() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setCheckoutWorkers("auto");
+        shallowClone.setPackThreads("auto");
+        shallowClone.setCompressionLevel(1);
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class);
+        final List<String> threads = new ArrayList<String>();
+        final Map<String, String> stepEnv = new HashMap<String, String>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                threads.add(ShallowDepthCloneOption.resolveThreads(ShallowDepthCloneOption.AUTO));
+                threads.add(Integer.toString(Math.max(
+                        1,
+                        Runtime.getRuntime().availableProcessors() / Math.max(1, build.getBuiltOn().getNumExecutors())
+                )));
+                stepEnv.putAll(build.getEnvironment(listener));
+                return true;
+            }
+        });
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertEquals(2, threads.size());
+        assertEquals(threads.get(1), threads.get(0));
+        // not applied to build steps.
+        assertFalse(stepEnv.containsValue("checkout.workers"));
+        assertFalse(stepEnv.containsValue("pack.threads"));
+        assertFalse(stepEnv.containsValue("core.compression"));
+        
+        // no node outside builds.
+        assertNull(ShallowDepthCloneOption.resolveThreads(ShallowDepthCloneOption.AUTO));
+    }
+    
+    @Test
+    public void testCloneWithTransport() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setProtocolV2(true);
+        shallowClone.setNegotiationAlgorithm("skipping");
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class);
+        final Map<String, String> stepEnv = new HashMap<String, String>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                stepEnv.putAll(build.getEnvironment(listener));
+                return true;
+            }
+        });
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        // not applied to build steps.
+        assertFalse(stepEnv.containsValue("protocol.version"));
+        assertFalse(stepEnv.containsValue("fetch.negotiationAlgorithm"));
+        
+        Map<String, String> env = new HashMap<String, String>();
+        shallowClone.populateEnvironmentVariables(new GitSCM("https://example.com/repo.git"), env);
+        assertEquals("2", env.get("GIT_CONFIG_COUNT"));
+        assertEquals("protocol.version", env.get("GIT_CONFIG_KEY_0"));
+        assertEquals("fetch.negotiationAlgorithm", env.get("GIT_CONFIG_KEY_1"));
+    }
+    
+    @Test
+    public void testThreadsEnvironment() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setCheckoutWorkers("4");
+        shallowClone.setPackThreads("2");
+        shallowClone.setCompressionLevel(1);
+        Map<String, String> env = new HashMap<String, String>();
+        shallowClone.populateEnvironmentVariables(new GitSCM("https://example.com/repo.git"), env);
+        assertEquals("3", env.get("GIT_CONFIG_COUNT"));
+        assertEquals("checkout.workers", env.get("GIT_CONFIG_KEY_0"));
+        assertEquals("4", env.get("GIT_CONFIG_VALUE_0"));
+        assertEquals("pack.threads", env.get("GIT_CONFIG_KEY_1"));
+        assertEquals("2", env.get("GIT_CONFIG_VALUE_1"));
+        assertEquals("core.compression", env.get("GIT_CONFIG_KEY_2"));
+        assertEquals("1", env.get("GIT_CONFIG_VALUE_2"));
+    }
+    
+    @Test
+    public void testConvertWorkspace() throws Exception {
+        TestGitRepo repo = createRepo();
+        FreeStyleProject p = createProjectForTest(new ShallowDepthCloneOption(1), FreeStyleProject.class, repo);
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        GitClient git = Git.with(createListener(), null)
+                .in(b1.getWorkspace())
+                .using("git")
+                .getClient();
+        assertEquals(1, git.revList("HEAD").size());
+        
+        // deepen
+        p.setScm(createProjectForTest(new ShallowDepthCloneOption(3), FreeStyleProject.class, repo).getScm());
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Converting the workspace to depth 3", b2);
+        assertEquals(3, git.revList("HEAD").size());
+        
+        // re-shallow
+        p.setScm(createProjectForTest(new ShallowDepthCloneOption(2), FreeStyleProject.class, repo).getScm());
+        FreeStyleBuild b3 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Converting the workspace to depth 2", b3);
+        j.assertLogContains("Pruning objects beyond the new depth", b3);
+        assertEquals(2, git.revList("HEAD").size());
+    }
+    
+    @Test
+    public void testNoDepthRecordedForExistingWorkspace() throws Exception {
+        TestGitRepo repo = createRepo();
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Collections.<GitSCMExtension>emptyList()
+        ));
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        File workspace = new File(b1.getWorkspace().getRemote());
+        int commits = Git.with(createListener(), null)
+                .in(b1.getWorkspace())
+                .using("git")
+                .getClient()
+                .revList("HEAD")
+                .size();
+        
+        // The workspace cloned before the option is enabled isn't converted.
+        p.setScm(createProjectForTest(new ShallowDepthCloneOption(1), FreeStyleProject.class, repo).getScm());
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogNotContains("Converting the workspace", b2);
+        assertTrue(launchGit(workspace, "config", "--get", "jenkins.shallowDepth") != 0);
+        assertEquals(commits, Git.with(createListener(), null)
+                .in(b2.getWorkspace())
+                .using("git")
+                .getClient()
+                .revList("HEAD")
+                .size()
+        );
+    }
+    
+    @Test
+    public void testCloneWithSingleFlight() throws Exception {
+        TestGitRepo repo = createRepo();
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(2);
+        shallowClone.setSingleFlight(true);
+        FreeStyleProject p1 = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        FreeStyleProject p2 = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p1.scheduleBuild2(0));
+        j.assertLogContains("Fetching", b1);
+        
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p2.scheduleBuild2(0));
+        j.assertLogContains("is already fetched into the shared repository", b2);
+        GitClient git = Git.with(createListener(), null)
+                .in(b2.getWorkspace())
+                .using("git")
+                .getClient();
+        assertEquals(2, git.revList("HEAD").size());
+        assertEquals(repo.gitDir.getAbsolutePath(), git.getRemoteUrl("origin"));
+    }
+    
+    @Test
+    public void testSingleFlightEvictsIdleMirrors() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setSingleFlight(true);
+        FreeStyleProject p1 = createProjectForTest(shallowClone, FreeStyleProject.class, createRepo());
+        FreeStyleProject p2 = createProjectForTest(shallowClone, FreeStyleProject.class, createRepo());
+        
+        j.assertBuildStatusSuccess(p1.scheduleBuild2(0));
+        FilePath mirrors = j.jenkins.getRootPath().child("caches/git-shallow-depth/mirrors");
+        for (FilePath mirror: mirrors.listDirectories()) {
+            mirror.touch(0);
+        }
+        
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p2.scheduleBuild2(0));
+        j.assertLogContains("Removing an idle shared repository", b2);
+        assertEquals(1, mirrors.listDirectories().size());
+    }
+    
+    private int launchGit(File dir, String... args) throws Exception {
+        ArgumentListBuilder cmd = new ArgumentListBuilder("git");
+        cmd.add(args);
+        return new Launcher.LocalLauncher(createListener()).launch()
+                .cmds(cmd)
+                .pwd(dir)
+                .stdout(createListener())
+                .join();
+    }
+    
+    private void runGit(File dir, String... args) throws Exception {
+        assertEquals(0, launchGit(dir, args));
+    }
+    
+    @Test
+    public void testCloneWithSubmodules() throws Exception {
+        TestGitRepo sub = new TestGitRepo("sub", tmp.newFolder(), createListener());
+        for (int i = 1; i <= 3; ++i) {
+            sub.commit("subfile", Integer.toString(i), sub.johnDoe, String.format("Commit %d", i));
+        }
+        TestGitRepo repo = createRepo();
+        // git 2.38.1 and later disallow submodules in local paths by default.
+        runGit(repo.gitDir, "-c", "protocol.file.allow=always", "submodule", "add", sub.gitDir.getAbsolutePath(), "sub");
+        repo.git.setAuthor(repo.johnDoe);
+        repo.git.setCommitter(repo.johnDoe);
+        repo.git.commit("Add a submodule");
+        
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setSubmoduleDepth(1);
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        EnvironmentVariablesNodeProperty allowFile = new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("GIT_CONFIG_COUNT", "1"),
+                new EnvironmentVariablesNodeProperty.Entry("GIT_CONFIG_KEY_0", "protocol.file.allow"),
+                new EnvironmentVariablesNodeProperty.Entry("GIT_CONFIG_VALUE_0", "always")
+        );
+        j.jenkins.getGlobalNodeProperties().add(allowFile);
+        try {
+            FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+            j.assertLogContains("Updating submodules with depth 1", b);
+            assertEquals("3", b.getWorkspace().child("sub/subfile").readToString());
+        } finally {
+            j.jenkins.getGlobalNodeProperties().remove(allowFile);
+        }
+    }
+    
+    @Test
+    public void testCloneWithLfs() throws Exception {
+        TestGitRepo repo = createRepo();
+        assumeTrue("git-lfs is not installed", launchGit(repo.gitDir, "lfs", "version") == 0);
+        runGit(repo.gitDir, "lfs", "install", "--local");
+        runGit(repo.gitDir, "lfs", "track", "*.bin");
+        FilePath dir = new FilePath(repo.gitDir);
+        dir.child("assets/image.bin").write("image", "UTF-8");
+        dir.child("docs/manual.bin").write("manual", "UTF-8");
+        runGit(repo.gitDir, "add", ".gitattributes", "assets/image.bin", "docs/manual.bin");
+        runGit(repo.gitDir, "-c", "user.name=John Doe", "-c", "user.email=john@doe.com", "commit", "-m", "Add LFS objects");
+        
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setLfsPull(true);
+        shallowClone.setLfsInclude("assets/**");
+        FreeStyleProject p = createProjectForTest(shallowClone, FreeStyleProject.class, repo);
+        final Map<String, String> stepEnv = new HashMap<String, String>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                stepEnv.putAll(build.getEnvironment(listener));
+                return true;
+            }
+        });
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Pulling LFS objects", b);
+        assertEquals("image", b.getWorkspace().child("assets/image.bin").readToString());
+        // not included, left as a pointer file.
+        assertTrue(b.getWorkspace().child("docs/manual.bin").readToString().startsWith("version https://git-lfs"));
+        // git in build steps downloads LFS objects as usual.
+        assertFalse(stepEnv.containsKey("GIT_LFS_SKIP_SMUDGE"));
+    }
+    
+    @Test
+    public void testLfsEnvironment() throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setLfsPull(true);
+        Map<String, String> env = new HashMap<String, String>();
+        shallowClone.populateEnvironmentVariables(new GitSCM("https://example.com/repo.git"), env);
+        assertEquals("1", env.get("GIT_LFS_SKIP_SMUDGE"));
+    }
 }
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.TestGitRepo;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Tests for {@link ShallowRepositoryMaintenance}
+ */
+public class ShallowRepositoryMaintenanceTest {
+    @ClassRule
+    public static GitShallowDepthJenkinsRule j = new GitShallowDepthJenkinsRule();
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    @After
+    public void clearRules() {
+        DepthPolicyConfiguration.get().setRules(null);
+    }
+    
+    /**
+     * git maintenance is available since git 2.29.
+     */
+    private static void assumeGitMaintenance() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Launcher.LocalLauncher(StreamBuildListener.fromStderr()).launch()
+                .cmds("git", "version")
+                .stdout(out)
+                .join();
+        Matcher m = Pattern.compile("(\\d+)\\.(\\d+)").matcher(out.toString("UTF-8"));
+        Assume.assumeTrue(m.find());
+        int major = Integer.parseInt(m.group(1));
+        int minor = Integer.parseInt(m.group(2));
+        Assume.assumeTrue(major > 2 || (major == 2 && minor >= 29));
+    }
+    
+    private FilePath buildAndMaintain(ShallowDepthCloneOption shallowClone) throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        for (int i = 1; i <= 3; ++i) {
+            repo.commit("afile", Integer.toString(i), repo.johnDoe, String.format("Commit %d", i));
+        }
+        shallowClone.setRepositoryMaintenance(true);
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Arrays.<GitSCMExtension>asList(shallowClone)
+        ));
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ShallowRepositoryMaintenance().execute(new StreamTaskListener(out));
+        String log = out.toString("UTF-8");
+        assertThat(log, containsString(String.format("Maintaining %s", b.getWorkspace().getRemote())));
+        assertThat(log, not(containsString("Failed to maintain")));
+        return b.getWorkspace().child(".git/objects/info");
+    }
+    
+    private static boolean hasCommitGraph(FilePath info) throws Exception {
+        return info.child("commit-graph").exists() || info.child("commit-graphs").exists();
+    }
+    
+    @Test
+    public void testMaintainShallowRepository() throws Exception {
+        assumeGitMaintenance();
+        FilePath info = buildAndMaintain(new ShallowDepthCloneOption(1));
+        assertFalse(hasCommitGraph(info));
+    }
+    
+    @Test
+    public void testMaintainFullRepository() throws Exception {
+        assumeGitMaintenance();
+        DepthPolicyConfiguration.get().setRules(Arrays.asList(new DepthPolicyRule(false, null)));
+        FilePath info = buildAndMaintain(new ShallowDepthCloneOption(null));
+        assertTrue(hasCommitGraph(info));
+    }
+    
+    @Test
+    public void testPruneAfterConversion() throws Exception {
+        assumeGitMaintenance();
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        for (int i = 1; i <= 3; ++i) {
+            repo.commit("afile", Integer.toString(i), repo.johnDoe, String.format("Commit %d", i));
+        }
+        FreeStyleProject p = j.createFreeStyleProject();
+        ShallowDepthCloneOption deep = new ShallowDepthCloneOption(3);
+        deep.setRepositoryMaintenance(true);
+        p.setScm(createScm(repo, deep));
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        // re-shallowed in the build, and pruned in the maintenance.
+        ShallowDepthCloneOption shallow = new ShallowDepthCloneOption(1);
+        shallow.setRepositoryMaintenance(true);
+        p.setScm(createScm(repo, shallow));
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Objects beyond the new depth are pruned in the next repository maintenance", b);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ShallowRepositoryMaintenance().execute(new StreamTaskListener(out));
+        String log = out.toString("UTF-8");
+        assertThat(log, containsString("Pruning objects beyond the depth"));
+        assertThat(log, not(containsString("Failed to maintain")));
+        
+        // pruned only once.
+        out = new ByteArrayOutputStream();
+        new ShallowRepositoryMaintenance().execute(new StreamTaskListener(out));
+        assertThat(out.toString("UTF-8"), not(containsString("Pruning objects beyond the depth")));
+    }
+    
+    @Test
+    public void testStopForQueuedBuild() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        repo.commit("afile", "1", repo.johnDoe, "Commit 1");
+        FreeStyleProject p = j.createFreeStyleProject();
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setRepositoryMaintenance(true);
+        p.setScm(createScm(repo, shallowClone));
+        j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        // waits in the queue for the quiet period.
+        p.scheduleBuild2(3600);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ShallowRepositoryMaintenance().execute(new StreamTaskListener(out));
+            String log = out.toString("UTF-8");
+            assertThat(log, containsString("A build is coming to the node"));
+            assertThat(log, not(containsString("Failed to maintain")));
+        } finally {
+            j.jenkins.getQueue().cancel(p);
+        }
+    }
+    
+    private static GitSCM createScm(TestGitRepo repo, ShallowDepthCloneOption shallowClone) {
+        return new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Arrays.<GitSCMExtension>asList(shallowClone)
+        );
+    }
+}
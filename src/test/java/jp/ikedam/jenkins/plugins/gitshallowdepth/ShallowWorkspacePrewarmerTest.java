@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StreamBuildListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.TestGitRepo;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+
+/**
+ * Tests for {@link ShallowWorkspacePrewarmer}
+ */
+public class ShallowWorkspacePrewarmerTest {
+    @ClassRule
+    public static GitShallowDepthJenkinsRule j = new GitShallowDepthJenkinsRule();
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    @After
+    public void clearRules() {
+        DepthPolicyConfiguration.get().setRules(null);
+    }
+    
+    private FreeStyleProject createProject(TestGitRepo repo, ShallowDepthCloneOption shallowClone) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(createScm(repo.remoteConfigs(), shallowClone));
+        return p;
+    }
+    
+    private GitSCM createScm(List<UserRemoteConfig> remotes, ShallowDepthCloneOption shallowClone) {
+        return new GitSCM(
+                remotes,
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Arrays.<GitSCMExtension>asList(shallowClone)
+        );
+    }
+    
+    private String runPrewarm(TestGitRepo repo, boolean prewarm) throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setPrewarm(prewarm);
+        return runPrewarm(repo, createProject(repo, shallowClone));
+    }
+    
+    private String runPrewarm(TestGitRepo repo, FreeStyleProject p) throws Exception {
+        repo.commit("afile", "initial", repo.johnDoe, "Commit 1");
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        
+        repo.commit("afile", "updated", repo.janeDoe, "Commit 2");
+        
+        new ShallowWorkspacePrewarmer().execute(StreamBuildListener.fromStderr());
+        
+        GitClient git = Git.with(StreamBuildListener.fromStderr(), null)
+                .in(b.getWorkspace())
+                .using("git")
+                .getClient();
+        return git.revParse("origin/master").name();
+    }
+    
+    @Test
+    public void testPrewarm() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        String fetched = runPrewarm(repo, true);
+        assertEquals(repo.git.revParse("HEAD").name(), fetched);
+    }
+    
+    @Test
+    public void testPrewarmKeepsDepth() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setPrewarm(true);
+        FreeStyleProject p = createProject(repo, shallowClone);
+        repo.commit("afile", "initial", repo.johnDoe, "Commit 1");
+        FreeStyleBuild b = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        repo.commit("afile", "updated", repo.janeDoe, "Commit 2");
+        
+        new ShallowWorkspacePrewarmer().execute(StreamBuildListener.fromStderr());
+        
+        GitClient git = Git.with(StreamBuildListener.fromStderr(), null)
+                .in(b.getWorkspace())
+                .using("git")
+                .getClient();
+        assertEquals(repo.git.revParse("HEAD").name(), git.revParse("origin/master").name());
+        // the shallow boundary is moved into the workspace with the objects.
+        assertEquals(1, git.revList("origin/master").size());
+        assertFalse(GitCommandLauncher.getTmpDir(b.getWorkspace()).child("prewarm.git").exists());
+    }
+    
+    @Test
+    public void testNoPrewarm() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        String fetched = runPrewarm(repo, false);
+        assertThat(fetched, not(is(repo.git.revParse("HEAD").name())));
+    }
+    
+    @Test
+    public void testPrewarmWithParameterizedUrl() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(1);
+        shallowClone.setPrewarm(true);
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(Arrays.<ParameterDefinition>asList(
+                new StringParameterDefinition("REPO", repo.gitDir.getAbsolutePath(), "")
+        )));
+        p.setScm(createScm(
+                Arrays.asList(new UserRemoteConfig("${REPO}", "origin", "", null)),
+                shallowClone
+        ));
+        String fetched = runPrewarm(repo, p);
+        assertEquals(repo.git.revParse("HEAD").name(), fetched);
+    }
+    
+    @Test
+    public void testNoPrewarmForFullHistory() throws Exception {
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        DepthPolicyConfiguration.get().setRules(Arrays.asList(new DepthPolicyRule(false, null)));
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
+        shallowClone.setPrewarm(true);
+        String fetched = runPrewarm(repo, createProject(repo, shallowClone));
+        assertThat(fetched, not(is(repo.git.revParse("HEAD").name())));
+    }
+}
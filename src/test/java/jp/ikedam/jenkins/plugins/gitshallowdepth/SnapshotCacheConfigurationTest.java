@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2016 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.gitshallowdepth;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
+
+import org.jenkinsci.plugins.gitclient.Git;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.SubmoduleConfig;
+import hudson.plugins.git.TestGitRepo;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.util.DirScanner;
+
+/**
+ * Tests for {@link SnapshotCacheConfiguration}
+ */
+public class SnapshotCacheConfigurationTest {
+    @ClassRule
+    public static GitShallowDepthJenkinsRule j = new GitShallowDepthJenkinsRule();
+    
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    @After
+    public void clearBackends() {
+        SnapshotCacheConfiguration.get().setBackends(null);
+    }
+    
+    @Test
+    public void testConfiguration() throws Exception {
+        SharedDirectorySnapshotCacheBackend shared = new SharedDirectorySnapshotCacheBackend("/mnt/snapshots");
+        shared.setBudget(1024);
+        ControllerSnapshotCacheBackend controller = new ControllerSnapshotCacheBackend();
+        controller.setBudget(2048);
+        SnapshotCacheConfiguration config = SnapshotCacheConfiguration.get();
+        config.setBackends(Arrays.<SnapshotCacheBackend>asList(shared, controller));
+        j.configRoundtrip();
+        assertEquals(2, config.getBackends().size());
+        j.assertEqualDataBoundBeans(shared, config.getBackends().get(0));
+        j.assertEqualDataBoundBeans(controller, config.getBackends().get(1));
+    }
+    
+    private FreeStyleProject createProject(TestGitRepo repo) throws Exception {
+        ShallowDepthCloneOption shallowClone = new ShallowDepthCloneOption(null);
+        shallowClone.setSnapshotCache(true);
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new GitSCM(
+                repo.remoteConfigs(),
+                Arrays.asList(new BranchSpec("*/master")),
+                false,  // doGenerateSubmoduleConfigurations
+                Collections.<SubmoduleConfig>emptyList(),
+                null,   // browser
+                null,   // gitTool
+                Arrays.<GitSCMExtension>asList(shallowClone)
+        ));
+        return p;
+    }
+    
+    private void doTestRestore(SnapshotCacheBackend backend) throws Exception {
+        SnapshotCacheConfiguration.get().setBackends(Arrays.asList(backend));
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        for (int i = 1; i <= 5; ++i) {
+            repo.commit("afile", Integer.toString(i), repo.johnDoe, String.format("Commit %d", i));
+        }
+        FreeStyleProject p = createProject(repo);
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertTrue(b1.getWorkspace().child(".git/hooks").isDirectory());
+        b1.getWorkspace().deleteRecursive();
+        // simulates a new node.
+        j.jenkins.getRootPath().child("caches/git-shallow-depth/snapshots").deleteRecursive();
+        
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Restored a snapshot of", b2);
+        j.assertLogContains(backend.getDescriptor().getDisplayName(), b2);
+        GitClient git = Git.with(StreamBuildListener.fromStderr(), null)
+                .in(b2.getWorkspace())
+                .using("git")
+                .getClient();
+        assertEquals(1, git.revList("HEAD").size());
+        // hooks may run commands of other jobs.
+        assertFalse(b2.getWorkspace().child(".git/hooks").exists());
+    }
+    
+    @Test
+    public void testRestoreFromSharedDirectory() throws Exception {
+        doTestRestore(new SharedDirectorySnapshotCacheBackend(tmp.newFolder().getAbsolutePath()));
+    }
+    
+    @Test
+    public void testRestoreFromController() throws Exception {
+        doTestRestore(new ControllerSnapshotCacheBackend());
+    }
+    
+    @Test
+    public void testDiscardTamperedSnapshot() throws Exception {
+        File dir = tmp.newFolder();
+        SnapshotCacheConfiguration.get().setBackends(Arrays.<SnapshotCacheBackend>asList(
+                new SharedDirectorySnapshotCacheBackend(dir.getAbsolutePath())
+        ));
+        TestGitRepo repo = new TestGitRepo("repo", tmp.newFolder(), StreamBuildListener.fromStderr());
+        repo.commit("afile", "1", repo.johnDoe, "Commit 1");
+        FreeStyleProject p = createProject(repo);
+        FreeStyleBuild b1 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        b1.getWorkspace().deleteRecursive();
+        j.jenkins.getRootPath().child("caches/git-shallow-depth/snapshots").deleteRecursive();
+        
+        // another node saves a different repository under the key.
+        File[] archives = dir.listFiles();
+        assertEquals(1, archives.length);
+        TestGitRepo other = new TestGitRepo("other", tmp.newFolder(), StreamBuildListener.fromStderr());
+        other.commit("afile", "tampered", other.janeDoe, "Tampered");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(archives[0]));
+        try {
+            new FilePath(other.gitDir).child(".git").tar(out, new DirScanner.Full());
+        } finally {
+            out.close();
+        }
+        
+        FreeStyleBuild b2 = j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        j.assertLogContains("Discarded a snapshot", b2);
+        j.assertLogNotContains("Restored a snapshot of", b2);
+        assertEquals("1", b2.getWorkspace().child("afile").readToString());
+    }
+}